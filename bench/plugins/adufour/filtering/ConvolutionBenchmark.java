@@ -0,0 +1,97 @@
+package plugins.adufour.filtering;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+import java.util.Random;
+
+/**
+ * Throughput of the direct convolution (see {@link Convolution}) against the image width, at a
+ * constant number of pixels, for a few 2D and 3D kernels.<br>
+ * This class is not part of the plugin (it lives outside the <code>src</code> folder, and is not
+ * exported to the jar): compile it against the plugin classes and run it with<br>
+ * <code>ConvolutionBenchmark [width1 width2 ...]</code>
+ */
+public class ConvolutionBenchmark
+{
+    /**
+     * Number of pixels of each test image
+     */
+    static final int NB_PIXELS = 1 << 22;
+    
+    /**
+     * Number of runs per measure (the fastest one is kept)
+     */
+    static final int NB_RUNS   = 5;
+    
+    /**
+     * Kernel sizes (X, Y, Z) to measure
+     */
+    static final int[][] KERNELS = { { 7, 7, 1 }, { 3, 3, 3 }, { 5, 5, 5 } };
+    
+    public static void main(String[] args) throws ConvolutionException
+    {
+        int[] widths = { 256, 1024, 4096, 16384 };
+        
+        if (args.length > 0)
+        {
+            widths = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                widths[i] = Integer.parseInt(args[i]);
+        }
+        
+        for (int[] kernelSize : KERNELS)
+        {
+            Sequence kernel = createRandomSequence(kernelSize[0], kernelSize[1], kernelSize[2], DataType.DOUBLE, 1);
+            
+            for (int width : widths)
+            {
+                int depth = kernelSize[2] == 1 ? 1 : 8;
+                int height = Math.max(8, NB_PIXELS / depth / width);
+                
+                Sequence sequence = createRandomSequence(width, height, depth, DataType.FLOAT, 2);
+                
+                Convolution convolution = new Convolution();
+                
+                long best = Long.MAX_VALUE;
+                
+                for (int run = 0; run < NB_RUNS; run++)
+                {
+                    long start = System.nanoTime();
+                    convolution.convolve(sequence, kernel, false, 1);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                
+                convolution.service.shutdown();
+                
+                double throughput = (double) width * height * depth / best * 1000;
+                
+                System.out.printf("kernel %dx%dx%d, image %dx%dx%d: %.1f Mpixels/s%n", kernelSize[0], kernelSize[1], kernelSize[2], width, height, depth, throughput);
+            }
+        }
+    }
+    
+    /**
+     * @return a single-channel sequence of the given size filled with random values in [0, 1]
+     */
+    private static Sequence createRandomSequence(int width, int height, int depth, DataType type, long seed)
+    {
+        Random random = new Random(seed);
+        
+        Sequence sequence = new Sequence("random " + width + "x" + height + "x" + depth);
+        
+        for (int z = 0; z < depth; z++)
+        {
+            double[] values = new double[width * height];
+            for (int xy = 0; xy < values.length; xy++)
+                values[xy] = random.nextDouble();
+            
+            IcyBufferedImage image = new IcyBufferedImage(width, height, 1, type);
+            image.setDataXYAsDouble(0, values);
+            sequence.setImage(0, z, image);
+        }
+        
+        return sequence;
+    }
+}
@@ -1,65 +1,25 @@
-__kernel void convolve2D(__global float* input,		// the input image as a 1D linear array
-                         int inputWidth,			// the image width
-                         int inputHeight,			// the image height
+__kernel void convolve2D(__global float* input,		// the padded input image as a 1D linear array
+                         int inputWidth,			// the image width (without halo)
+                         int inputHeight,			// the image height (without halo)
                          __global float* k,			// the kernel as a 1D linear array
-                         int kWidth,				// the rounded kernel half-width
-                         int kHeight,               // the rounded kernel half-height
+                         int kWidth,				// the rounded kernel half-width (halo width)
+                         int kHeight,               // the rounded kernel half-height (halo height)
                          __global float* output)	// the output image as a 1D linear array
 {
 	int pixel = get_global_id(0);
 	
-	int inX, inY, inXY = 0, kXY = 0;
+	int inXY, kXY = 0;
 	float iSum = 0.f;
 	const int x = pixel % inputWidth;
 	const int y = pixel / inputWidth;
+	const int paddedWidth = inputWidth + (kWidth << 1);
 	
-	for (int kY = -kHeight; kY <= kHeight; kY++) {
-		inY = y + kY;
-		if (inY < 0 || inY >= inputHeight) continue; // zero boundary condition
-		inXY = inY * inputWidth;
-		for (int kX = -kWidth; kX <= kWidth; kX++, kXY++) {
-			inX = x + kX;
-			if (inX < 0 || inX >= inputWidth) continue; // zero boundary condition
-			iSum += input[inXY + inX] * k[kXY];
-		}
-	}
-	output[pixel] = iSum;
-}
-
-__kernel void convolve2D_mirror(__global float* input, 	// the input image as a 1D linear array
-                    	        int inputWidth,			// the image width
-                    	        int inputHeight,		// the image height
-                   		        __global float* k,		// the kernel as a 1D linear array
-                   		        int kWidth,				// the rounded kernel half-width
-                   		        int kHeight,            // the rounded kernel half-height
-                   		        __global float* output)	// the output image as a 1D linear array
-{
-	int pixel = get_global_id(0);
-	
-	int inX, inY, inXY = 0, kXY = 0;
-	float iSum = 0.f;
-	const int x = pixel % inputWidth;
-	const int y = pixel / inputWidth;
-	
-	for (int kY = -kHeight; kY <= kHeight; kY++) {
-		inY = y + kY;
-		// mirror boundary condition
-		if (inY < 0) {
-			inY = -inY + 1;
-		} else if (inY >= inputHeight) {
-			inY = (inputHeight << 1) - inY - 1;
-		}
-		inXY = inY * inputWidth;
+	// the halo already holds the boundary condition (zero or mirror)
+	for (int kY = 0; kY <= (kHeight << 1); kY++) {
+		inXY = (y + kY) * paddedWidth + x;
 		// sweep through the kernel along X
-		for (int kX = -kWidth; kX <= kWidth; kX++, kXY++) {
-			inX = x + kX;
-			// mirror boundary condition
-			if (inX < 0) {
-				inX = -inX + 1;
-			} else if (inX >= inputWidth) {
-				inX = (inputWidth << 1) - inX - 1;
-			}
-			iSum += input[inXY + inX] * k[kXY];
+		for (int kX = 0; kX <= (kWidth << 1); kX++, kXY++) {
+			iSum += input[inXY + kX] * k[kXY];
 		}
 	}
 	output[pixel] = iSum;
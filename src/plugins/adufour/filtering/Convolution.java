@@ -1,11 +1,11 @@
 package plugins.adufour.filtering;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 import icy.image.IcyBufferedImage;
 import icy.sequence.Sequence;
+import icy.system.SystemUtil;
 import icy.type.DataType;
 import icy.type.collection.array.Array1DUtil;
 import plugins.adufour.vars.lang.Var;
@@ -53,7 +53,100 @@ public class Convolution extends Filter
         c.service.shutdown();
     }
     
+    /**
+     * Convolves a sequence with the given kernel. Iterations compound, i.e. each iteration
+     * convolves the result of the previous one
+     * 
+     * @param sequence
+     *            the sequence to convolve
+     * @param kernel
+     *            the convolution kernel (1D, 2D or 3D)
+     * @param zeroEdges
+     *            true if data outside the sequence should be treated as zero, or false for
+     *            mirroring condition
+     * @param nbIter
+     *            the number of filter iterations
+     * @return a new sequence with the result of the last iteration
+     */
     public Sequence convolve(final Sequence sequence, Sequence kernel, final boolean zeroEdges, int nbIter)
+    {
+        return convolve(sequence, kernel, zeroEdges, nbIter, Precision.DOUBLE);
+    }
+    
+    /**
+     * Convolves a sequence with the given kernel, with working buffers of the given precision.
+     * Iterations compound, i.e. each iteration convolves the result of the previous one
+     * 
+     * @param sequence
+     *            the sequence to convolve
+     * @param kernel
+     *            the convolution kernel (1D, 2D or 3D)
+     * @param zeroEdges
+     *            true if data outside the sequence should be treated as zero, or false for
+     *            mirroring condition
+     * @param nbIter
+     *            the number of filter iterations
+     * @param precision
+     *            the precision of the working buffers (see {@link Precision} for the error bounds
+     *            of single precision). Kernels with small integer weights (e.g. Sobel, Laplacian)
+     *            on 8-bit or 16-bit data are always convolved exactly with integer arithmetic
+     * @return a new sequence with the result of the last iteration
+     */
+    public Sequence convolve(final Sequence sequence, Sequence kernel, final boolean zeroEdges, int nbIter, Precision precision)
+    {
+        final int width = sequence.getSizeX();
+        final int height = sequence.getSizeY();
+        final int depth = sequence.getSizeZ();
+        
+        int kWidth = kernel.getSizeX() >> 1;
+        int kHeight = kernel.getSizeY() >> 1;
+        int kDepth = kernel.getSizeZ() >> 1;
+        
+        double[][] _kernel = kernel.getDataXYZAsDouble(0, 0);
+        
+        // with mirror edges, the iterations of a symmetric kernel are a single convolution with the
+        // composed kernel (the mirrored data remains mirrored after each iteration). With zero
+        // edges, data outside the image is reset to zero after each iteration, thus iterations are
+        // not composable
+        if (nbIter > 1 && !zeroEdges && isSymmetric(_kernel, kWidth, kHeight, kDepth))
+        {
+            double volume = (double) width * height * depth;
+            double nbTaps = _kernel.length * _kernel[0].length;
+            double composedTaps = (2.0 * nbIter * kWidth + 1) * (2.0 * nbIter * kHeight + 1) * (2.0 * nbIter * kDepth + 1);
+            
+            double iterated = nbIter * Math.min(volume * nbTaps, FFTConvolution.getCost(width, height, depth, kWidth, kHeight, kDepth));
+            
+            // the composition itself costs one pass of the kernel over each intermediate kernel
+            double composition = 0;
+            for (int i = 1; i < nbIter; i++)
+                composition += nbTaps * (2.0 * i * kWidth + 1) * (2.0 * i * kHeight + 1) * (2.0 * i * kDepth + 1);
+            
+            if (composition + volume * composedTaps < iterated
+                    || composition + FFTConvolution.getCost(width, height, depth, nbIter * kWidth, nbIter * kHeight, nbIter * kDepth) < iterated)
+            {
+                _kernel = compose(_kernel, kWidth, kHeight, kDepth, nbIter);
+                kWidth *= nbIter;
+                kHeight *= nbIter;
+                kDepth *= nbIter;
+                nbIter = 1;
+            }
+        }
+        
+        return convolve(sequence, _kernel, kWidth, kHeight, kDepth, zeroEdges, nbIter, precision);
+    }
+    
+    /**
+     * Iterated convolution of a sequence with a kernel given by its radius in each dimension
+     * 
+     * @param _kernel
+     *            the convolution kernel, given as a [Z (slice)][XY (1D offset)] double array of size
+     *            (2*kWidth+1) x (2*kHeight+1) x (2*kDepth+1)
+     * @param precision
+     *            the precision of the working buffers of the direct convolution (the convolution in
+     *            the Fourier domain always runs in double precision)
+     */
+    private Sequence convolve(final Sequence sequence, final double[][] _kernel, final int kWidth, final int kHeight, final int kDepth, final boolean zeroEdges, final int nbIter,
+            Precision precision)
     {
         Sequence out = new Sequence(sequence.getName() + "_" + getDescriptor().getName());
         
@@ -65,170 +158,819 @@ public class Convolution extends Filter
         final DataType type = sequence.getDataType_();
         final boolean signed = type.isSigned();
         
-        final double taskIncrement = 1.0 / (height * depth * channels * sequence.getSizeT());
+        final int paddedWidth = width + 2 * kWidth;
+        final int paddedHeight = height + 2 * kHeight;
         
-        final int kWidth = kernel.getSizeX() >> 1;
-        final int kHeight = kernel.getSizeY() >> 1;
-        final int kDepth = kernel.getSizeZ() >> 1;
+        // small integer kernels (e.g. Sobel, Laplacian) on 8-bit or 16-bit data run exactly with
+        // integer arithmetic on int[][] stacks, and the result is only clamped to the output type
+        final boolean integer = isIntegerExact(type, getIntegerNorm(_kernel), nbIter);
         
-        final Object[] in_Z_XY = new Object[depth];
+        // other working buffers are in single precision (float[][] stacks) or double precision
+        // (double[][])
+        final boolean single = !integer && precision.forType(type) == Precision.FLOAT;
         
-        final double[] cache = new double[width * height];
+        final DataType workType = integer ? DataType.INT : single ? DataType.FLOAT : DataType.DOUBLE;
         
-        final double[][] _kernel = kernel.getDataXYZAsDouble(0, 0);
+        // sparse kernels skip their zero taps (null if the dense kernel is as fast). Integer kernels
+        // always use the sparse form, which holds the integer weights
+        final SparseKernel sparse = integer ? new SparseKernel(_kernel, kWidth, kHeight, kDepth, paddedWidth) : SparseKernel.compile(_kernel, kWidth, kHeight, kDepth, paddedWidth);
         
-        // create an array of tasks for multi-thread processing
-        // => rationale: one task per image line
-        ArrayList<Future<?>> tasks = new ArrayList<Future<?>>(height);
+        // large kernels are convolved in the Fourier domain
+        int nbPasses = sparse != null ? sparse.getNbPasses() : _kernel.length * _kernel[0].length;
         
-        convolution: for (int t = 0; t < frames; t++)
+        if (FFTConvolution.isFasterThanDirect(width, height, depth, kWidth, kHeight, kDepth, nbPasses))
         {
-            for (int z = 0; z < depth; z++)
-                out.setImage(t, z, new IcyBufferedImage(width, height, channels, type));
+            convolveFFT(sequence, out, _kernel, kWidth, kHeight, kDepth, zeroEdges, nbIter);
+            return out;
+        }
+        
+        // progress is counted in convolved lines (of each iteration)
+        final TaskMonitor monitor = new TaskMonitor(stopFlag, progress, (double) height * depth * channels * frames * nbIter);
+        
+        // each task convolves a band of consecutive lines, with a few bands per processor. Bands of
+        // successive slices, channels and frames overlap (they only read the input)
+        final int nbBandsPerSlice = SystemUtil.getAvailableProcessors() * 4;
+        final int bandHeight = Math.max(1, (height + nbBandsPerSlice - 1) / nbBandsPerSlice);
+        
+        TaskPipeline pipeline = new TaskPipeline(service, SystemUtil.getAvailableProcessors() * 16, monitor);
+        
+        try
+        {
+            convolution: for (int t = 0; t < frames; t++)
+            {
+                for (int z = 0; z < depth; z++)
+                    out.setImage(t, z, new IcyBufferedImage(width, height, channels, type));
+                
+                for (int c = 0; c < channels; c++)
+                {
+                    // convert the input data to the working type once (instead of once per tap),
+                    // with a halo holding the boundary condition
+                    
+                    final Object[] in_Z_XY = new Object[depth];
+                    
+                    for (int z = 0; z < depth; z++)
+                        in_Z_XY[z] = sequence.getImage(t, z, c).getDataXY(0);
+                    
+                    Object[] source_Z_XY = Padding.padStack(in_Z_XY, type, width, height, kWidth, kHeight, kDepth, zeroEdges, workType);
+                    
+                    // iterations compound: each iteration convolves the result of the previous one,
+                    // kept in a second padded buffer (the two buffers are swapped after each
+                    // iteration), and only the last one writes to the output
+                    Object[] target_Z_XY = null;
+                    
+                    if (nbIter > 1) target_Z_XY = Padding.padSlices(Padding.createStack(workType, depth, paddedWidth * paddedHeight), kDepth, zeroEdges);
+                    
+                    for (int i = 0; i < nbIter; i++)
+                    {
+                        final boolean last = i == nbIter - 1;
+                        final Object[] padded_Z_XY = source_Z_XY;
+                        
+                        for (int z = 0; z < depth; z++)
+                        {
+                            final int slice = z;
+                            final Object out_XY = last ? out.getDataXY(t, z, c) : null;
+                            final Object next_XY = last ? null : target_Z_XY[z + kDepth];
+                            
+                            for (int y = 0; y < height; y += bandHeight)
+                                {
+                                    final int minY = y;
+                                    final int maxY = Math.min(y + bandHeight, height);
+                                    
+                                    // submit a new filtering task for the current band
+                                    pipeline.submit(new Runnable()
+                                    {
+                                        @Override
+                                        public void run()
+                                        {
+                                            // skip the remaining bands if the process was cancelled
+                                            if (monitor.isCancelled()) return;
+                                            
+                                            if (integer)
+                                            {
+                                                int[][] in = (int[][]) padded_Z_XY;
+                                                int[] cache = new int[width];
+                                                
+                                                for (int line = minY; line < maxY; line++)
+                                                {
+                                                    sparse.convolveLine(in, cache, width, slice, line);
+                                                    
+                                                    if (last)
+                                                    {
+                                                        Array1DUtil.intArrayToSafeArray(cache, 0, out_XY, line * width, width, true, signed);
+                                                    }
+                                                    else
+                                                    {
+                                                        System.arraycopy(cache, 0, next_XY, (line + kHeight) * paddedWidth + kWidth, width);
+                                                    }
+                                                }
+                                            }
+                                            else if (single)
+                                            {
+                                                float[][] in = (float[][]) padded_Z_XY;
+                                                float[] cache = new float[width];
+                                                
+                                                for (int line = minY; line < maxY; line++)
+                                                {
+                                                    if (sparse != null)
+                                                    {
+                                                        sparse.convolveLine(in, cache, width, slice, line);
+                                                    }
+                                                    else
+                                                    {
+                                                        convolveLine(in, cache, width, slice, line, _kernel, kWidth, kHeight, kDepth);
+                                                    }
+                                                    
+                                                    if (last)
+                                                    {
+                                                        Rounding.toSafeArray(cache, 0, out_XY, line * width, width, type);
+                                                    }
+                                                    else
+                                                    {
+                                                        System.arraycopy(cache, 0, next_XY, (line + kHeight) * paddedWidth + kWidth, width);
+                                                    }
+                                                }
+                                            }
+                                            else
+                                            {
+                                                double[][] in = (double[][]) padded_Z_XY;
+                                                double[] cache = new double[width];
+                                                
+                                                for (int line = minY; line < maxY; line++)
+                                                {
+                                                    if (sparse != null)
+                                                    {
+                                                        sparse.convolveLine(in, cache, width, slice, line);
+                                                    }
+                                                    else
+                                                    {
+                                                        convolveLine(in, cache, width, slice, line, _kernel, kWidth, kHeight, kDepth);
+                                                    }
+                                                    
+                                                    if (last)
+                                                    {
+                                                        Rounding.toSafeArray(cache, 0, out_XY, line * width, width, type);
+                                                    }
+                                                    else
+                                                    {
+                                                        System.arraycopy(cache, 0, next_XY, (line + kHeight) * paddedWidth + kWidth, width);
+                                                    }
+                                                }
+                                            }
+                                            
+                                            monitor.add(maxY - minY);
+                                        }
+                                    });
+                                    
+                                    if (monitor.isCancelled()) break convolution;
+                                } // end for(y)
+                        } // end for(z)
+                        
+                        if (last) break;
+                        
+                        // the next iteration reads the whole result, and its halo
+                        pipeline.await();
+                        
+                        if (monitor.isCancelled()) break convolution;
+                        
+                        for (int z = 0; z < depth; z++)
+                            Padding.fillHalo(target_Z_XY[z + kDepth], width, height, kWidth, kHeight, zeroEdges);
+                        
+                        source_Z_XY = target_Z_XY;
+                        target_Z_XY = padded_Z_XY;
+                    } // end for(i)
+                } // end for(c)
+            } // end for(t)
+            
+            if (monitor.isCancelled())
+            {
+                pipeline.cancel();
+            }
+            else
+            {
+                pipeline.await();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            pipeline.cancel();
+            e.printStackTrace();
+        }
+        catch (ExecutionException e)
+        {
+            pipeline.cancel();
+            e.printStackTrace();
+        }
+        finally
+        {
+            monitor.close();
+        }
+        
+        return out;
+    }
+    
+    /**
+     * Convolves a sequence with a bank of kernels (e.g. compass operators) in a single pass: each
+     * slice of the input is converted and padded once, and all kernels are applied to each of its
+     * lines, sharing the weights they have in common (see {@link SparseKernelBank})
+     * 
+     * @param sequence
+     *            the sequence to convolve
+     * @param kernels
+     *            the kernels of the bank (smaller kernels are centred in the largest one)
+     * @param zeroEdges
+     *            true if data outside the image should be treated as zero, or false for mirroring
+     *            condition
+     * @param output
+     *            the output of the convolution
+     * @return a new sequence with either the responses to all kernels (the response of channel c
+     *         to kernel k being in channel <code>c * kernels.length + k</code>), or the maximum
+     *         response (resp. the index of the kernel with the maximum response) of each channel
+     */
+    public Sequence convolveBank(final Sequence sequence, Sequence[] kernels, final boolean zeroEdges, final KernelBank.Output output)
+    {
+        Sequence out = new Sequence(sequence.getName() + "_" + getDescriptor().getName());
+        
+        final int width = sequence.getSizeX();
+        final int height = sequence.getSizeY();
+        final int depth = sequence.getSizeZ();
+        final int channels = sequence.getSizeC();
+        final int frames = sequence.getSizeT();
+        final DataType type = sequence.getDataType_();
+        final boolean signed = type.isSigned();
+        
+        final int nbKernels = kernels.length;
+        final int nbOutputs = output == KernelBank.Output.ALL ? nbKernels : 1;
+        
+        // common radius of the kernels
+        int radiusX = 0, radiusY = 0, radiusZ = 0;
+        
+        for (Sequence kernel : kernels)
+        {
+            radiusX = Math.max(radiusX, kernel.getSizeX() >> 1);
+            radiusY = Math.max(radiusY, kernel.getSizeY() >> 1);
+            radiusZ = Math.max(radiusZ, kernel.getSizeZ() >> 1);
+        }
+        
+        final int kWidth = radiusX;
+        final int kHeight = radiusY;
+        final int kDepth = radiusZ;
+        
+        double[][][] _kernels = new double[nbKernels][2 * kDepth + 1][(2 * kWidth + 1) * (2 * kHeight + 1)];
+        
+        for (int k = 0; k < nbKernels; k++)
+        {
+            Sequence kernel = kernels[k];
+            
+            int offsetX = kWidth - (kernel.getSizeX() >> 1);
+            int offsetY = kHeight - (kernel.getSizeY() >> 1);
+            int offsetZ = kDepth - (kernel.getSizeZ() >> 1);
             
-            for (int c = 0; c < channels; c++)
+            for (int z = 0; z < kernel.getSizeZ(); z++)
             {
-                // retrieve the input data in double format for convolution
+                double[] k_XY = kernel.getDataXYAsDouble(0, z, 0);
                 
+                for (int y = 0, xy = 0; y < kernel.getSizeY(); y++)
+                    for (int x = 0; x < kernel.getSizeX(); x++, xy++)
+                        _kernels[k][z + offsetZ][(y + offsetY) * (2 * kWidth + 1) + x + offsetX] = k_XY[xy];
+            }
+        }
+        
+        final SparseKernelBank bank = new SparseKernelBank(_kernels, kWidth, kHeight, kDepth, width + 2 * kWidth);
+        
+        // integer kernels (e.g. Kirsch, Sobel) on 8-bit or 16-bit data run with integer arithmetic.
+        // The base and difference kernels of the bank (see SparseKernelBank) are bounded by the
+        // largest absolute weight of the kernels at each tap (resp. twice this weight)
+        double[][] envelope = new double[2 * kDepth + 1][(2 * kWidth + 1) * (2 * kHeight + 1)];
+        
+        for (double[][] kernel : _kernels)
+            for (int z = 0; z < envelope.length; z++)
+                for (int xy = 0; xy < envelope[z].length; xy++)
+                    envelope[z][xy] = Math.max(envelope[z][xy], Math.abs(kernel[z][xy]));
+        
+        final boolean integer = isIntegerExact(type, 3 * getIntegerNorm(envelope), 1);
+        
+        // progress is counted in convolved lines
+        final TaskMonitor monitor = new TaskMonitor(stopFlag, progress, (double) height * depth * channels * frames);
+        
+        // one task per image line, as in the convolution with a single kernel
+        TaskPipeline pipeline = new TaskPipeline(service, SystemUtil.getAvailableProcessors() * 16, monitor);
+        
+        try
+        {
+            convolution: for (int t = 0; t < frames; t++)
+            {
                 for (int z = 0; z < depth; z++)
-                    in_Z_XY[z] = sequence.getImage(t, z, c).getDataXY(0);
+                    out.setImage(t, z, new IcyBufferedImage(width, height, channels * nbOutputs, type));
                 
-                for (int i = 0; i < nbIter; i++)
+                for (int c = 0; c < channels; c++)
                 {
+                    final Object[] in_Z_XY = new Object[depth];
+                    
+                    for (int z = 0; z < depth; z++)
+                        in_Z_XY[z] = sequence.getImage(t, z, c).getDataXY(0);
+                    
+                    final Object[] padded_Z_XY = Padding.padStack(in_Z_XY, type, width, height, kWidth, kHeight, kDepth, zeroEdges, integer ? DataType.INT : DataType.DOUBLE);
+                    
                     for (int z = 0; z < depth; z++)
                     {
                         final int slice = z;
-                        final Object out_XY = out.getDataXY(t, z, c);
+                        final Object[] out_XY = new Object[nbOutputs];
                         
-                        // clear the task array
-                        tasks.clear();
+                        for (int k = 0; k < nbOutputs; k++)
+                            out_XY[k] = out.getDataXY(t, z, c * nbOutputs + k);
                         
                         for (int y = 0; y < height; y++)
                         {
                             final int line = y;
                             final int lineOffset = y * width;
                             
-                            // submit a new filtering task for the current line
-                            tasks.add(service.submit(new Runnable()
+                            pipeline.submit(new Runnable()
                             {
                                 @Override
                                 public void run()
                                 {
-                                    int kX, kY, kZ;
-                                    int inX, inY, inZ;
-                                    int kXY, inXY, outXY = lineOffset;
+                                    // skip the remaining lines if the process was cancelled
+                                    if (monitor.isCancelled()) return;
                                     
-                                    for (int x = 0; x < width; x++, outXY++)
+                                    if (integer)
                                     {
-                                        // core convolution code
+                                        int[][] responses = new int[nbKernels][width];
                                         
-                                        double conv = 0;
+                                        bank.convolveLine((int[][]) padded_Z_XY, responses, width, slice, line);
                                         
-                                        // sweep through the kernel along Z
-                                        for (kZ = -kDepth; kZ <= kDepth; kZ++)
+                                        if (output != KernelBank.Output.ALL)
                                         {
-                                            inZ = slice + kZ;
+                                            // reduce the responses into the first line
+                                            int[] max = responses[0];
+                                            int[] argmax = new int[width];
                                             
-                                            // mirror boundary condition
-                                            if (inZ < 0)
-                                            {
-                                                if (zeroEdges) continue;
-                                                
-                                                inZ = -inZ + 1;
-                                            }
-                                            else if (inZ >= depth)
+                                            for (int k = 1; k < nbKernels; k++)
                                             {
-                                                if (zeroEdges) continue;
+                                                int[] response = responses[k];
                                                 
-                                                inZ = (depth * 2) - inZ - 1;
+                                                for (int x = 0; x < width; x++)
+                                                    if (response[x] > max[x])
+                                                    {
+                                                        max[x] = response[x];
+                                                        argmax[x] = k;
+                                                    }
                                             }
                                             
-                                            Object in_XY = in_Z_XY[inZ];
-                                            double[] k_XY = _kernel[kZ];
-                                            
-                                            kXY = 0;
+                                            if (output == KernelBank.Output.ARGMAX) responses[0] = argmax;
+                                        }
+                                        
+                                        for (int k = 0; k < nbOutputs; k++)
+                                            Array1DUtil.intArrayToSafeArray(responses[k], 0, out_XY[k], lineOffset, width, true, signed);
+                                    }
+                                    else
+                                    {
+                                        double[][] responses = new double[nbKernels][width];
+                                        
+                                        bank.convolveLine((double[][]) padded_Z_XY, responses, width, slice, line);
+                                        
+                                        if (output != KernelBank.Output.ALL)
+                                        {
+                                            // reduce the responses into the first line
+                                            double[] max = responses[0];
+                                            double[] argmax = new double[width];
                                             
-                                            // sweep through the kernel along Y
-                                            for (kY = -kHeight; kY <= kHeight; kY++)
+                                            for (int k = 1; k < nbKernels; k++)
                                             {
-                                                inY = line + kY;
+                                                double[] response = responses[k];
                                                 
-                                                // mirror boundary condition
-                                                if (inY < 0)
-                                                {
-                                                    if (zeroEdges) continue;
-                                                    
-                                                    inY = -inY + 1;
-                                                }
-                                                else if (inY >= height)
-                                                {
-                                                    if (zeroEdges) continue;
-                                                    
-                                                    inY = (height * 2) - inY - 1;
-                                                }
-                                                
-                                                // this is the line offset
-                                                inXY = inY * width;
-                                                
-                                                // sweep through the kernel along X
-                                                for (kX = -kWidth; kX <= kWidth; kX++, kXY++)
-                                                {
-                                                    inX = x + kX;
-                                                    
-                                                    // mirror boundary condition
-                                                    if (inX < 0)
-                                                    {
-                                                        if (zeroEdges) continue;
-                                                        
-                                                        inX = -inX + 1;
-                                                    }
-                                                    else if (inX >= width)
+                                                for (int x = 0; x < width; x++)
+                                                    if (response[x] > max[x])
                                                     {
-                                                        if (zeroEdges) continue;
-                                                        
-                                                        inX = (width * 2) - inX - 1;
+                                                        max[x] = response[x];
+                                                        argmax[x] = k;
                                                     }
-                                                    
-                                                    // Enough of this crap ! convolve god damn it !!
-                                                    
-                                                    conv += Array1DUtil.getValue(in_XY, inXY + inX, type) * k_XY[kXY];
-                                                }
                                             }
+                                            
+                                            if (output == KernelBank.Output.ARGMAX) responses[0] = argmax;
                                         }
-                                        // store the result in the temporary buffer
-                                        cache[outXY] = conv;
-                                    } // end for(x)
-                                    
-                                    Array1DUtil.doubleArrayToSafeArray(cache, lineOffset, out_XY, lineOffset, width, signed);
+                                        
+                                        for (int k = 0; k < nbOutputs; k++)
+                                            Rounding.toSafeArray(responses[k], 0, out_XY[k], lineOffset, width, type);
+                                    }
                                     
-                                    if (line % 3 == 0) progress.setValue(progress.getValue() + taskIncrement * 3);
+                                    monitor.add(1);
                                 }
-                            }));
+                            });
                             
-                            if (stopFlag.getValue()) break;
+                            if (monitor.isCancelled()) break convolution;
                         } // end for(y)
+                    } // end for(z)
+                } // end for(c)
+            } // end for(t)
+            
+            if (monitor.isCancelled())
+            {
+                pipeline.cancel();
+            }
+            else
+            {
+                pipeline.await();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            pipeline.cancel();
+            e.printStackTrace();
+        }
+        catch (ExecutionException e)
+        {
+            pipeline.cancel();
+            e.printStackTrace();
+        }
+        finally
+        {
+            monitor.close();
+        }
+        
+        return out;
+    }
+    
+    /**
+     * Convolution in the Fourier domain (see {@link FFTConvolution}). Large images are convolved by
+     * blocks (overlap-save): each block is read with a halo of the kernel radius, and only its
+     * valid part is written to the output. Blocks run in parallel, while the transforms of a
+     * single block (if the whole image fits in one) are parallel themselves
+     */
+    private void convolveFFT(Sequence sequence, Sequence out, double[][] kernel, final int kWidth, final int kHeight, final int kDepth, final boolean zeroEdges, final int nbIter)
+    {
+        final int width = sequence.getSizeX();
+        final int height = sequence.getSizeY();
+        final int depth = sequence.getSizeZ();
+        final int channels = sequence.getSizeC();
+        final int frames = sequence.getSizeT();
+        final DataType type = sequence.getDataType_();
+        final boolean signed = type.isSigned();
+        
+        int[] blockSize = FFTConvolution.getBlockSize(width, height, depth, kWidth, kHeight, kDepth);
+        final int blockWidth = blockSize[0];
+        final int blockHeight = blockSize[1];
+        final int blockDepth = blockSize[2];
+        final int nbBlocks = ((width + blockWidth - 1) / blockWidth) * ((height + blockHeight - 1) / blockHeight) * ((depth + blockDepth - 1) / blockDepth);
+        
+        // progress is counted in convolved blocks (of each iteration)
+        final TaskMonitor monitor = new TaskMonitor(stopFlag, progress, (double) nbBlocks * channels * frames * nbIter);
+        
+        // each block in flight holds a few buffers of the size of its transform
+        TaskPipeline pipeline = new TaskPipeline(service, SystemUtil.getAvailableProcessors(), monitor);
+        
+        try
+        {
+            final FFTConvolution fft = new FFTConvolution(service, kernel, kWidth, kHeight, kDepth, blockWidth, blockHeight, blockDepth);
+            
+            convolution: for (int t = 0; t < frames; t++)
+            {
+                for (int z = 0; z < depth; z++)
+                    out.setImage(t, z, new IcyBufferedImage(width, height, channels, type));
+                
+                for (int c = 0; c < channels; c++)
+                {
+                    Object[] source_Z_XY = new Object[depth];
+                    final Object[] out_Z_XY = new Object[depth];
+                    
+                    for (int z = 0; z < depth; z++)
+                    {
+                        source_Z_XY[z] = sequence.getImage(t, z, c).getDataXY(0);
+                        out_Z_XY[z] = out.getDataXY(t, z, c);
+                    }
+                    
+                    // iterations compound: each iteration convolves the result of the previous one,
+                    // kept in double precision in a second buffer (the two buffers are swapped
+                    // after each iteration), and only the last one writes to the output
+                    Object[] target_Z_XY = nbIter > 1 ? new double[depth][width * height] : null;
+                    DataType sourceType = type;
+                    
+                    for (int i = 0; i < nbIter; i++)
+                    {
+                        final boolean last = i == nbIter - 1;
+                        final Object[] in_Z_XY = source_Z_XY;
+                        final DataType inType = sourceType;
+                        final Object[] result_Z_XY = last ? out_Z_XY : target_Z_XY;
                         
-                        try
-                        {
-                            for (Future<?> f : tasks)
-                                f.get();
-                        }
-                        catch (InterruptedException e)
-                        {
-                            e.printStackTrace();
-                        }
-                        catch (ExecutionException e)
+                        for (int z0 = 0; z0 < depth; z0 += blockDepth)
+                            for (int y0 = 0; y0 < height; y0 += blockHeight)
+                                for (int x0 = 0; x0 < width; x0 += blockWidth)
+                                {
+                                    final int blockX = x0, blockY = y0, blockZ = z0;
+                                    
+                                    Runnable block = new Runnable()
+                                    {
+                                        @Override
+                                        public void run()
+                                        {
+                                            // skip the remaining blocks if the process was cancelled
+                                            if (monitor.isCancelled()) return;
+                                            
+                                            double[][] padded = Padding.padBlock(in_Z_XY, inType, width, height, blockX, blockY, blockZ, blockWidth, blockHeight, blockDepth,
+                                                    kWidth, kHeight, kDepth, zeroEdges);
+                                            
+                                            double[][] result = new double[blockDepth][blockWidth * blockHeight];
+                                            
+                                            try
+                                            {
+                                                // a single block uses all processors for its transforms
+                                                fft.convolve(nbBlocks == 1 ? service : null, padded, result);
+                                            }
+                                            catch (InterruptedException e)
+                                            {
+                                                Thread.currentThread().interrupt();
+                                                return;
+                                            }
+                                            catch (ExecutionException e)
+                                            {
+                                                throw new RuntimeException(e);
+                                            }
+                                            
+                                            // write the valid part of the block
+                                            int validWidth = Math.min(blockWidth, width - blockX);
+                                            int validHeight = Math.min(blockHeight, height - blockY);
+                                            int validDepth = Math.min(blockDepth, depth - blockZ);
+                                            
+                                            for (int z = 0; z < validDepth; z++)
+                                                for (int y = 0; y < validHeight; y++)
+                                                    Rounding.toSafeArray(result[z], y * blockWidth, result_Z_XY[blockZ + z], (blockY + y) * width + blockX, validWidth, type);
+                                            
+                                            monitor.add(1);
+                                        }
+                                    };
+                                    
+                                    if (nbBlocks == 1)
+                                    {
+                                        block.run();
+                                        monitor.publish();
+                                    }
+                                    else
+                                    {
+                                        pipeline.submit(block);
+                                    }
+                                    
+                                    if (monitor.isCancelled()) break convolution;
+                                }
+                        
+                        if (last) break;
+                        
+                        // the next iteration reads the whole result
+                        pipeline.await();
+                        
+                        if (monitor.isCancelled()) break convolution;
+                        
+                        target_Z_XY = i == 0 ? new double[depth][width * height] : source_Z_XY;
+                        source_Z_XY = result_Z_XY;
+                        sourceType = DataType.DOUBLE;
+                    }
+                }
+            }
+            
+            if (monitor.isCancelled())
+            {
+                pipeline.cancel();
+            }
+            else
+            {
+                pipeline.await();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            pipeline.cancel();
+            e.printStackTrace();
+        }
+        catch (ExecutionException e)
+        {
+            pipeline.cancel();
+            e.printStackTrace();
+        }
+        finally
+        {
+            monitor.close();
+        }
+    }
+    
+    /**
+     * Low-level convolution of a single image line. <br>
+     * The input is padded with a halo holding the boundary condition (see {@link Padding}), thus
+     * each kernel tap is applied to the whole line in a plain multiply-add loop, without any
+     * boundary test.<br>
+     * Warning: this is a low-level method. No check is performed on the input arguments, and the
+     * method may return successfully though with incorrect results. Make sure your arguments follow
+     * the indicated constraints.
+     * 
+     * @param input
+     *            the padded input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+     *            with a halo of (kWidth, kHeight, kDepth) pixels in each dimension
+     * @param output
+     *            the output line buffer (of length <code>width</code>)
+     * @param width
+     *            the image width (without halo)
+     * @param slice
+     *            the slice of the line to convolve
+     * @param line
+     *            the line to convolve
+     * @param kernel
+     *            the convolution kernel, given as a [Z (slice)][XY (1D offset)] double array of size
+     *            (2*kWidth+1) x (2*kHeight+1) x (2*kDepth+1)
+     * @param kWidth
+     *            the kernel radius along X
+     * @param kHeight
+     *            the kernel radius along Y
+     * @param kDepth
+     *            the kernel radius along Z
+     */
+    static void convolveLine(double[][] input, double[] output, int width, int slice, int line, double[][] kernel, int kWidth, int kHeight, int kDepth)
+    {
+        final int paddedWidth = width + 2 * kWidth;
+        
+        Arrays.fill(output, 0, width, 0.0);
+        
+        for (int kZ = 0; kZ <= 2 * kDepth; kZ++)
+        {
+            final double[] in_XY = input[slice + kZ];
+            final double[] k_XY = kernel[kZ];
+            
+            int kXY = 0;
+            
+            for (int kY = 0; kY <= 2 * kHeight; kY++)
+            {
+                final int inLineOffset = (line + kY) * paddedWidth;
+                
+                for (int kX = 0; kX <= 2 * kWidth; kX++, kXY++)
+                {
+                    final double weight = k_XY[kXY];
+                    final int shift = inLineOffset + kX;
+                    
+                    for (int x = 0; x < width; x++)
+                        output[x] += weight * in_XY[shift + x];
+                }
+            }
+        }
+    }
+    
+    /**
+     * Same as
+     * {@link #convolveLine(double[][], double[], int, int, int, double[][], int, int, int)}
+     * , in single precision (the kernel weights are rounded to single precision)
+     */
+    static void convolveLine(float[][] input, float[] output, int width, int slice, int line, double[][] kernel, int kWidth, int kHeight, int kDepth)
+    {
+        final int paddedWidth = width + 2 * kWidth;
+        
+        Arrays.fill(output, 0, width, 0f);
+        
+        for (int kZ = 0; kZ <= 2 * kDepth; kZ++)
+        {
+            final float[] in_XY = input[slice + kZ];
+            final double[] k_XY = kernel[kZ];
+            
+            int kXY = 0;
+            
+            for (int kY = 0; kY <= 2 * kHeight; kY++)
+            {
+                final int inLineOffset = (line + kY) * paddedWidth;
+                
+                for (int kX = 0; kX <= 2 * kWidth; kX++, kXY++)
+                {
+                    final float weight = (float) k_XY[kXY];
+                    final int shift = inLineOffset + kX;
+                    
+                    for (int x = 0; x < width; x++)
+                        output[x] += weight * in_XY[shift + x];
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return true if the given kernel is symmetric about its centre along each axis
+     */
+    static boolean isSymmetric(double[][] kernel, int kWidth, int kHeight, int kDepth)
+    {
+        final int kSizeX = 2 * kWidth + 1;
+        final int kSizeY = 2 * kHeight + 1;
+        
+        for (int kZ = 0; kZ <= 2 * kDepth; kZ++)
+            for (int kY = 0; kY < kSizeY; kY++)
+                for (int kX = 0; kX < kSizeX; kX++)
+                {
+                    double weight = kernel[kZ][kY * kSizeX + kX];
+                    
+                    if (weight != kernel[kZ][kY * kSizeX + 2 * kWidth - kX]) return false;
+                    if (weight != kernel[kZ][(2 * kHeight - kY) * kSizeX + kX]) return false;
+                    if (weight != kernel[2 * kDepth - kZ][kY * kSizeX + kX]) return false;
+                }
+        
+        return true;
+    }
+    
+    /**
+     * @param kernel
+     *            the convolution kernel, given as a [Z (slice)][XY (1D offset)] double array
+     * @return the sum of the absolute weights of the kernel if all its weights are integers, or NaN
+     *         otherwise
+     */
+    static double getIntegerNorm(double[][] kernel)
+    {
+        double norm = 0;
+        
+        for (double[] kernel_XY : kernel)
+            for (double weight : kernel_XY)
+            {
+                if (weight != Math.rint(weight)) return Double.NaN;
+                
+                norm += Math.abs(weight);
+            }
+        
+        return norm;
+    }
+    
+    /**
+     * Checks whether a convolution can run exactly with integer arithmetic (see
+     * {@link SparseKernel#convolveLine(int[][], int[], int, int, int, int)}), i.e. if the data is
+     * 8-bit or 16-bit and the (integer) weights of the kernel are small enough for all intermediate
+     * results to fit in an <code>int</code>
+     * 
+     * @param type
+     *            the data type
+     * @param norm
+     *            the sum of the absolute weights of the kernel (see
+     *            {@link #getIntegerNorm(double[][])})
+     * @param nbIter
+     *            the number of iterations (each iteration multiplies the range of the data by the
+     *            norm)
+     */
+    static boolean isIntegerExact(DataType type, double norm, int nbIter)
+    {
+        switch (type)
+        {
+        case UBYTE:
+        case BYTE:
+        case USHORT:
+        case SHORT:
+            return Math.max(-type.getMinValue(), type.getMaxValue()) * Math.pow(norm, nbIter) <= Integer.MAX_VALUE;
+        
+        default:
+            return false;
+        }
+    }
+    
+    /**
+     * Composes a kernel with itself, such that a single convolution with the composed kernel gives
+     * the same result as the given number of iterations of the kernel (as long as the data outside
+     * the image is not modified by the iterations)
+     * 
+     * @param kernel
+     *            the convolution kernel, given as a [Z (slice)][XY (1D offset)] double array of size
+     *            (2*kWidth+1) x (2*kHeight+1) x (2*kDepth+1)
+     * @param nbIter
+     *            the number of iterations
+     * @return the composed kernel, given as a [Z (slice)][XY (1D offset)] double array of radius
+     *         (nbIter*kWidth, nbIter*kHeight, nbIter*kDepth)
+     */
+    static double[][] compose(double[][] kernel, int kWidth, int kHeight, int kDepth, int nbIter)
+    {
+        final int kSizeX = 2 * kWidth + 1;
+        
+        double[][] composed = kernel;
+        
+        for (int i = 1; i < nbIter; i++)
+        {
+            // radius of the kernel composed so far, and of the next one
+            final int cWidth = i * kWidth, cHeight = i * kHeight, cDepth = i * kDepth;
+            final int cSizeX = 2 * cWidth + 1;
+            final int nSizeX = cSizeX + 2 * kWidth;
+            
+            double[][] next = new double[2 * (cDepth + kDepth) + 1][nSizeX * (2 * (cHeight + kHeight) + 1)];
+            
+            for (int cZ = 0; cZ <= 2 * cDepth; cZ++)
+                for (int cY = 0; cY <= 2 * cHeight; cY++)
+                    for (int cX = 0; cX <= 2 * cWidth; cX++)
+                    {
+                        final double weight = composed[cZ][cY * cSizeX + cX];
+                        
+                        if (weight == 0) continue;
+                        
+                        for (int kZ = 0; kZ <= 2 * kDepth; kZ++)
                         {
-                            e.printStackTrace();
+                            final double[] k_XY = kernel[kZ];
+                            final double[] n_XY = next[cZ + kZ];
+                            
+                            for (int kY = 0; kY <= 2 * kHeight; kY++)
+                            {
+                                final int kOffset = kY * kSizeX;
+                                final int nOffset = (cY + kY) * nSizeX + cX;
+                                
+                                for (int kX = 0; kX < kSizeX; kX++)
+                                    n_XY[nOffset + kX] += weight * k_XY[kOffset + kX];
+                            }
                         }
-
-                        if (stopFlag.getValue()) break convolution;
-                    } // end for(z)
-                    if (stopFlag.getValue()) break convolution;
-                } // end for(i)
-            } // end for(c)
-        } // end for(t)
+                    }
+            
+            composed = next;
+        }
         
-        return out;
+        return composed;
     }
 }
@@ -6,6 +6,7 @@ import icy.system.thread.Processor;
 import icy.type.DataType;
 import icy.type.collection.array.Array1DUtil;
 
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -61,6 +62,32 @@ public class Convolution1D
      *             if a kernel is too large w.r.t. the image size
      */
     public static void convolve(Sequence sequence, Sequence kernel1D_X, Sequence kernel1D_Y, Sequence kernel1D_Z, int nbIter, VarBoolean stopFlag) throws ConvolutionException
+    {
+        convolve(sequence, kernel1D_X, kernel1D_Y, kernel1D_Z, nbIter, stopFlag, Precision.DOUBLE);
+    }
+    
+    /**
+     * Spatial convolution for separable kernels, with working buffers of the given precision. <br>
+     * This method accept kernels as 1D sequences which can either have: <br>
+     * - a single time point and channel (applied to the entire sequence) <br>
+     * - one kernel per time point and channel (applied individually)
+     * 
+     * @param sequence
+     *            the Sequence to convolve
+     * @param kernel1D_X
+     *            the kernel to use for convolution along X
+     * @param kernel1D_Y
+     *            the kernel to use for convolution along Y
+     * @param kernel1D_Z
+     *            the kernel to use for convolution along Z
+     * @param precision
+     *            the precision of the working buffers (see {@link Precision} for the error bounds
+     *            of single precision)
+     * @throws ConvolutionException
+     *             if a kernel is too large w.r.t. the image size
+     */
+    public static void convolve(Sequence sequence, Sequence kernel1D_X, Sequence kernel1D_Y, Sequence kernel1D_Z, int nbIter, VarBoolean stopFlag, Precision precision)
+            throws ConvolutionException
     {
         if (kernel1D_X == null && kernel1D_Y == null && kernel1D_Z == null) throw new IllegalArgumentException("Invalid argument: provide at least one non-null kernel");
         
@@ -93,59 +120,175 @@ public class Convolution1D
         sequence.beginUpdate();
         
         // Special case: if the input data is already of type double, no conversion is needed.
-        // => use shortcut methods to perform direct "in-place" convolution
+        // => use shortcut methods to perform direct "in-place" convolution. Other types are
+        // converted to working buffers of the given precision
         
         DataType type = sequence.getDataType_();
         
-        if (type == DataType.DOUBLE)
-        {
-            convolution:
-            for (int t = 0; t < sequence.getSizeT(); t++)
-                for (int c = 0; c < sequence.getSizeC(); c++)
+        final int sliceSize = sequence.getSizeX() * sequence.getSizeY();
+        
+        Object[] z_xy = type == DataType.DOUBLE ? null : Padding.createStack(workType(precision, type), sequence.getSizeZ(), sliceSize);
+        
+        convolution:
+        for (int t = 0; t < sequence.getSizeT(); t++)
+            for (int c = 0; c < sequence.getSizeC(); c++)
+            {
+                if (kernel1D_X != null) kernelX = kernel1D_X.getDataXYAsDouble(Math.min(t, kernel1D_X.getSizeT() - 1), 0, Math.min(c, kernel1D_X.getSizeC() - 1));
+                if (kernel1D_Y != null) kernelY = kernel1D_Y.getDataXYAsDouble(Math.min(t, kernel1D_Y.getSizeT() - 1), 0, Math.min(c, kernel1D_Y.getSizeC() - 1));
+                if (kernel1D_Z != null) kernelZ = kernel1D_Z.getDataXYAsDouble(Math.min(t, kernel1D_Z.getSizeT() - 1), 0, Math.min(c, kernel1D_Z.getSizeC() - 1));
+                
+                for (int i = 0; i < nbIter; i++)
                 {
-                    if (kernel1D_X != null) kernelX = kernel1D_X.getDataXYAsDouble(Math.min(t, kernel1D_X.getSizeT() - 1), 0, Math.min(c, kernel1D_X.getSizeC() - 1));
-                    if (kernel1D_Y != null) kernelY = kernel1D_Y.getDataXYAsDouble(Math.min(t, kernel1D_Y.getSizeT() - 1), 0, Math.min(c, kernel1D_Y.getSizeC() - 1));
-                    if (kernel1D_Z != null) kernelZ = kernel1D_Z.getDataXYAsDouble(Math.min(t, kernel1D_Z.getSizeT() - 1), 0, Math.min(c, kernel1D_Z.getSizeC() - 1));
-                    
-                    for (int i = 0; i < nbIter; i++)
+                    if (z_xy == null)
                     {
                         convolve(sequence.getDataXYZAsDouble(t, c), sequence.getSizeX(), sequence.getSizeY(), kernelX, kernelY, kernelZ);
+                    }
+                    else
+                    {
+                        for (int z = 0; z < sequence.getSizeZ(); z++)
+                            SelectionFilter.gather(sequence.getDataXY(t, z, c), 0, z_xy[z], 0, sliceSize, type);
                         
-                        if (stopFlag.getValue()) break convolution;
+                        convolve(z_xy, sequence.getSizeX(), sequence.getSizeY(), kernelX, kernelY, kernelZ);
+                        
+                        for (int z = 0; z < sequence.getSizeZ(); z++)
+                            toArray(z_xy[z], sequence.getDataXY(t, z, c), type);
                     }
+                    
+                    if (stopFlag.getValue()) break convolution;
                 }
-        }
-        else
+            }
+        
+        sequence.endUpdate();
+    }
+    
+    /**
+     * Spatial convolution with a 2D kernel given as a sum of separable terms, in double precision
+     * (see {@link #convolve(Sequence, double[][], double[][], boolean, int, VarBoolean, Precision)}).
+     * 
+     * @throws ConvolutionException
+     *             if a kernel is too large w.r.t. the image size, or if the convolution fails
+     */
+    public static void convolve(Sequence sequence, double[][] kernelsX, double[][] kernelsY, boolean zeroEdges, int nbIter, VarBoolean stopFlag) throws ConvolutionException
+    {
+        convolve(sequence, kernelsX, kernelsY, zeroEdges, nbIter, stopFlag, Precision.DOUBLE);
+    }
+    
+    /**
+     * Spatial convolution with a 2D kernel given as a sum of separable terms (e.g. its
+     * {@link SeparableKernel low-rank decomposition}), with working buffers of the given precision.
+     * Each term is convolved along X then Y, and the terms are summed in the working precision
+     * before conversion to the sequence data type (see {@link Rounding}). <br>
+     * The convolution is made "in-place", i.e. the sequence data is overwritten upon return.
+     * 
+     * @param sequence
+     *            the Sequence to convolve
+     * @param kernelsX
+     *            the odd-length kernel along X of each term
+     * @param kernelsY
+     *            the odd-length kernel along Y of each term
+     * @param zeroEdges
+     *            true if data outside the sequence should be treated as zero, or false for
+     *            mirroring condition
+     * @param nbIter
+     *            the number of filter iterations
+     * @param stopFlag
+     *            a flag that interrupts the process when set to true
+     * @param precision
+     *            the precision of the working buffers (see {@link Precision} for the error bounds
+     *            of single precision, the bound of each term adds up)
+     * @throws ConvolutionException
+     *             if a kernel is too large w.r.t. the image size, or if the convolution fails
+     */
+    public static void convolve(Sequence sequence, double[][] kernelsX, double[][] kernelsY, boolean zeroEdges, int nbIter, VarBoolean stopFlag, Precision precision)
+            throws ConvolutionException
+    {
+        if (kernelsX.length == 0 || kernelsX.length != kernelsY.length) throw new IllegalArgumentException("Invalid argument: provide the same (non-zero) number of kernels along X and Y");
+        for (int term = 0; term < kernelsX.length; term++)
+            if (kernelsX[term].length % 2 == 0 || kernelsY[term].length % 2 == 0) throw new IllegalArgumentException("Invalid argument: kernel " + term + " has even size");
+        
+        final int width = sequence.getSizeX();
+        final int height = sequence.getSizeY();
+        final int depth = sequence.getSizeZ();
+        final int sliceSize = width * height;
+        
+        DataType type = sequence.getDataType_();
+        
+        Processor service = new Processor(SystemUtil.getAvailableProcessors() * 2);
+        
+        sequence.beginUpdate();
+        
+        try
         {
-            double[][] z_xy = new double[sequence.getSizeZ()][sequence.getSizeX() * sequence.getSizeY()];
+            DataType workType = workType(precision, type);
             
-            convolution:
-            for (int t = 0; t < sequence.getSizeT(); t++)
+            Object[] z_xy = Padding.createStack(workType, depth, sliceSize);
+            Object[] sum = Padding.createStack(workType, depth, sliceSize);
+            Object[] temp = Padding.createStack(workType, depth, sliceSize);
+            
+            convolution: for (int t = 0; t < sequence.getSizeT(); t++)
                 for (int c = 0; c < sequence.getSizeC(); c++)
                 {
-                    if (kernel1D_X != null) kernelX = kernel1D_X.getDataXYAsDouble(Math.min(t, kernel1D_X.getSizeT() - 1), 0, Math.min(c, kernel1D_X.getSizeC() - 1));
-                    if (kernel1D_Y != null) kernelY = kernel1D_Y.getDataXYAsDouble(Math.min(t, kernel1D_Y.getSizeT() - 1), 0, Math.min(c, kernel1D_Y.getSizeC() - 1));
-                    if (kernel1D_Z != null) kernelZ = kernel1D_Z.getDataXYAsDouble(Math.min(t, kernel1D_Z.getSizeT() - 1), 0, Math.min(c, kernel1D_Z.getSizeC() - 1));
+                    for (int z = 0; z < depth; z++)
+                        SelectionFilter.gather(sequence.getDataXY(t, z, c), 0, z_xy[z], 0, sliceSize, type);
                     
                     for (int i = 0; i < nbIter; i++)
                     {
-                        for (int z = 0; z < sequence.getSizeZ(); z++)
-                            Array1DUtil.arrayToDoubleArray(sequence.getDataXY(t, z, c), z_xy[z], type.isSigned());
-                        
-                        convolve(z_xy, sequence.getSizeX(), sequence.getSizeY(), kernelX, kernelY, kernelZ);
-                        
-                        for (int z = 0; z < sequence.getSizeZ(); z++)
+                        for (int term = 0; term < kernelsX.length; term++)
                         {
-                            // ArrayMath.rescale(z_xy[z], sequence.getComponentMinValue(c),
-                            // sequence.getComponentMaxValue(c), true);
-                            Array1DUtil.doubleArrayToSafeArray(z_xy[z], sequence.getDataXY(t, z, c), type.isSigned());
+                            convolve1D(service, z_xy, temp, width, height, kernelsX[term], Axis.X, zeroEdges);
+                            convolveAndAddY(service, temp, sum, width, height, kernelsY[term], zeroEdges, term > 0);
                         }
                         
-                        if (stopFlag.getValue()) break convolution;
+                        // the next iteration convolves the result of this one
+                        Object[] swap = z_xy;
+                        z_xy = sum;
+                        sum = swap;
+                        
+                        if (stopFlag.getValue()) break;
                     }
+                    
+                    for (int z = 0; z < depth; z++)
+                        toArray(z_xy[z], sequence.getDataXY(t, z, c), type);
+                    
+                    if (stopFlag.getValue()) break convolution;
                 }
         }
-        sequence.endUpdate();
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            throw new ConvolutionException("Unable to convolve the separable terms of the kernel", e.getCause());
+        }
+        finally
+        {
+            service.shutdown();
+            sequence.endUpdate();
+        }
+    }
+    
+    /**
+     * Convolves each slice of the input along Y, and adds the result to the output (to sum
+     * separable terms without a temporary stack). The convolution is direct (see
+     * {@link #convolve1D(ExecutorService, Object[], Object[], int, int, double[], Axis, boolean)}
+     * ).
+     * 
+     * @param accumulate
+     *            true to add the result to the output, or false to overwrite it
+     */
+    private static void convolveAndAddY(ExecutorService service, Object[] input, Object[] output, int width, int height, double[] kernel, boolean zeroEdges,
+            boolean accumulate) throws InterruptedException, ExecutionException
+    {
+        Object k = toWorkType(kernel, input);
+        
+        ArrayList<Future<?>> tasks = new ArrayList<Future<?>>(input.length);
+        
+        for (int z = 0; z < input.length; z++)
+            tasks.add(service.submit(convolveSliceY(input[z], output[z], width, height, k, zeroEdges, accumulate)));
+        
+        for (Future<?> task : tasks)
+            task.get();
     }
     
     /**
@@ -202,9 +345,7 @@ public class Convolution1D
                     if (Thread.currentThread().isInterrupted()) return;
                     
                     for (int z = 0; z < sequence.getSizeZ(); z++)
-                    {
-                        Array1DUtil.doubleArrayToSafeArray(z_xy[z], sequence.getDataXY(t, z, c), type.isSigned());
-                    }
+                        Rounding.toSafeArray(z_xy[z], 0, sequence.getDataXY(t, z, c), 0, z_xy[z].length, type);
                 }
         }
     }
@@ -234,93 +375,50 @@ public class Convolution1D
      *             if a kernel is too large w.r.t the image size
      */
     public static void convolve(double[][] array, int imageWidth, int imageHeight, double[] kernelX, double[] kernelY, double[] kernelZ) throws ConvolutionException
+    {
+        convolve((Object[]) array, imageWidth, imageHeight, kernelX, kernelY, kernelZ);
+    }
+    
+    /**
+     * Same as {@link #convolve(double[][], int, int, double[], double[], double[])}, in single
+     * precision (see {@link Precision} for the error bounds)
+     */
+    public static void convolve(float[][] array, int imageWidth, int imageHeight, double[] kernelX, double[] kernelY, double[] kernelZ) throws ConvolutionException
+    {
+        convolve((Object[]) array, imageWidth, imageHeight, kernelX, kernelY, kernelZ);
+    }
+    
+    /**
+     * Same as {@link #convolve(double[][], int, int, double[], double[], double[])}, for a stack of
+     * double or float working buffers
+     */
+    private static void convolve(Object[] array, int imageWidth, int imageHeight, double[] kernelX, double[] kernelY, double[] kernelZ) throws ConvolutionException
     {
         Processor service = new Processor(SystemUtil.getAvailableProcessors() * 2);
         
-        int sliceSize = array[0].length;
+        Object[] in = array;
+        Object[] out = Padding.createStack(array instanceof float[][] ? DataType.FLOAT : DataType.DOUBLE, array.length, imageWidth * imageHeight);
         
-        double[][] temp = new double[array.length][sliceSize];
+        // the kernel along Z is ignored for 2D images
+        double[][] kernels = { kernelX, kernelY, array.length == 1 ? null : kernelZ };
+        Axis[] axes = { Axis.X, Axis.Y, Axis.Z };
         
         try
         {
-            if (array.length == 1)
-            {
-                if (kernelX == null)
-                {
-                    convolve1D(service, array, temp, imageWidth, imageHeight, kernelY, Axis.Y);
-                    
-                    for (int z = 0; z < array.length; z++)
-                        System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
-                }
-                else if (kernelY == null)
-                {
-                    convolve1D(service, array, temp, imageWidth, imageHeight, kernelX, Axis.X);
-                    
-                    for (int z = 0; z < array.length; z++)
-                        System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
-                }
-                else
-                {
-                    convolve1D(service, array, temp, imageWidth, imageHeight, kernelX, Axis.X);
-                    convolve1D(service, temp, array, imageWidth, imageHeight, kernelY, Axis.Y);
-                }
-            }
-            else
+            for (int axis = 0; axis < axes.length; axis++)
             {
-                if (kernelX == null)
-                {
-                    if (kernelY == null)
-                    {
-                        convolve1D(service, array, temp, imageWidth, imageHeight, kernelZ, Axis.Z);
-                        
-                        for (int z = 0; z < array.length; z++)
-                            System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
-                    }
-                    else if (kernelZ == null)
-                    {
-                        convolve1D(service, array, temp, imageWidth, imageHeight, kernelY, Axis.Y);
-                        
-                        for (int z = 0; z < array.length; z++)
-                            System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
-                    }
-                    else
-                    {
-                        convolve1D(service, array, temp, imageWidth, imageHeight, kernelY, Axis.Y);
-                        convolve1D(service, temp, array, imageWidth, imageHeight, kernelZ, Axis.Z);
-                    }
-                }
-                // kernel_X is not null from here on
-                else if (kernelY == null)
-                {
-                    if (kernelZ == null)
-                    {
-                        convolve1D(service, array, temp, imageWidth, imageHeight, kernelX, Axis.X);
-                        
-                        for (int z = 0; z < array.length; z++)
-                            System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
-                    }
-                    else
-                    {
-                        convolve1D(service, array, temp, imageWidth, imageHeight, kernelX, Axis.X);
-                        convolve1D(service, temp, array, imageWidth, imageHeight, kernelZ, Axis.Z);
-                    }
-                }
-                // kernel_X and kernel_Y are not null from here
-                else if (kernelZ == null)
-                {
-                    convolve1D(service, array, temp, imageWidth, imageHeight, kernelX, Axis.X);
-                    convolve1D(service, temp, array, imageWidth, imageHeight, kernelY, Axis.Y);
-                }
-                else
-                {
-                    convolve1D(service, array, temp, imageWidth, imageHeight, kernelX, Axis.X);
-                    convolve1D(service, temp, array, imageWidth, imageHeight, kernelY, Axis.Y);
-                    convolve1D(service, array, temp, imageWidth, imageHeight, kernelZ, Axis.Z);
-                    
-                    for (int z = 0; z < array.length; z++)
-                        System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
-                }
+                if (kernels[axis] == null) continue;
+                
+                convolve1D(service, in, out, imageWidth, imageHeight, kernels[axis], axes[axis], false);
+                
+                Object[] swap = in;
+                in = out;
+                out = swap;
             }
+            
+            // the result is in the input array after an even number of passes
+            if (in != array) for (int z = 0; z < array.length; z++)
+                System.arraycopy(in[z], 0, array[z], 0, imageWidth * imageHeight);
         }
         catch (InterruptedException e)
         {
@@ -406,294 +504,157 @@ public class Convolution1D
      */
     public static void convolve1D(ExecutorService service, final double[][] input, final double[][] output, final int width, final int height, final double[] kernel, Axis axis)
             throws ConvolutionException, InterruptedException, ExecutionException
+    {
+        convolve1D(service, input, output, width, height, kernel, axis, false);
+    }
+    
+    /**
+     * Low-level 1D convolution method. <br>
+     * Warning: this is a low-level method. No check is performed on the input arguments, and the
+     * method may return successfully though with incorrect results. Make sure your arguments follow
+     * the indicated constraints.
+     * 
+     * @param input
+     *            the input image data buffer, given as a [Z (slice)][XY (1D offset)] double array
+     * @param output
+     *            the output image data buffer, given as a [Z (slice)][XY (1D offset)] double array
+     *            (must point to a different array than the input)
+     * @param width
+     *            the image width
+     * @param height
+     *            the image height
+     * @param kernel
+     *            an odd-length convolution kernel
+     * @param axis
+     *            the axis along which to convolve
+     * @param zeroEdges
+     *            true if data outside the image should be treated as zero, or false for mirroring
+     *            condition
+     * @throws ConvolutionException
+     *             if a kernel is too large w.r.t. the image size
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    public static void convolve1D(ExecutorService service, double[][] input, double[][] output, int width, int height, double[] kernel, Axis axis, boolean zeroEdges)
+            throws ConvolutionException, InterruptedException, ExecutionException
+    {
+        convolve1D(service, (Object[]) input, (Object[]) output, width, height, kernel, axis, zeroEdges);
+    }
+    
+    /**
+     * Same as {@link #convolve1D(ExecutorService, double[][], double[][], int, int, double[], Axis, boolean)}
+     * , in single precision (the kernel weights are rounded to single precision). Long kernels are
+     * still convolved in the Fourier domain in double precision (see {@link FFTConvolution}).
+     */
+    public static void convolve1D(ExecutorService service, float[][] input, float[][] output, int width, int height, double[] kernel, Axis axis, boolean zeroEdges)
+            throws ConvolutionException, InterruptedException, ExecutionException
+    {
+        convolve1D(service, (Object[]) input, (Object[]) output, width, height, kernel, axis, zeroEdges);
+    }
+    
+    /**
+     * Same as {@link #convolve1D(ExecutorService, double[][], double[][], int, int, double[], Axis, boolean)}
+     * , for stacks of double or float working buffers (given as double[][] or float[][] arrays)
+     */
+    private static void convolve1D(ExecutorService service, final Object[] input, final Object[] output, final int width, final int height, double[] kernel, Axis axis,
+            final boolean zeroEdges) throws ConvolutionException, InterruptedException, ExecutionException
     {
         try
         {
-            final int sliceSize = input[0].length;
+            final int kSize = kernel.length;
             
-            final int kRadius = (kernel.length - 1) / 2;
+            final int kRadius = (kSize - 1) / 2;
             
-            switch (axis)
+            // long kernels (e.g. Gaussian kernels with a large sigma) are convolved in the Fourier
+            // domain, as a 3D kernel that is only one pixel thick along the other axes
+            final int kWidth = axis == Axis.X ? kRadius : 0;
+            final int kHeight = axis == Axis.Y ? kRadius : 0;
+            final int kDepth = axis == Axis.Z ? kRadius : 0;
+            
+            final DataType workType = input instanceof float[][] ? DataType.FLOAT : DataType.DOUBLE;
+            
+            if (FFTConvolution.isFasterThanDirect(width, height, input.length, kWidth, kHeight, kDepth))
             {
-            case X: {
-                ArrayList<Future<?>> tasks = new ArrayList<Future<?>>(input.length);
+                double[][] kernel_Z_XY = new double[2 * kDepth + 1][];
                 
-                for (int z = 0; z < input.length; z++)
+                if (axis == Axis.Z)
                 {
-                    final double[] inSlice = input[z];
-                    final double[] outSlice = output[z];
-                    
-                    tasks.add(service.submit(new Runnable()
-                    {
-                        public void run()
-                        {
-                            int xy = 0;
-                            for (int y = 0; y < height; y++)
-                            {
-                                int x = 0;
-                                
-                                // store the offset of the first and last elements of the line
-                                // they will be used to compute mirror conditions
-                                int xStartOffset = xy;
-                                int xEndOffset = xy + width - 1;
-                                
-                                // convolve the west border (mirror condition)
-                                
-                                for (; x < kRadius; x++, xy++)
-                                {
-                                    double value = 0;
-                                    
-                                    for (int kIndex = 0, kOffset = -kRadius; kOffset <= kRadius; kOffset++, kIndex++)
-                                    {
-                                        int inOffset = xy + kOffset;
-                                        if (inOffset < xStartOffset) inOffset = xStartOffset + (xStartOffset - inOffset);
-                                        
-                                        value += inSlice[inOffset] * kernel[kIndex];
-                                    }
-                                    
-                                    outSlice[xy] = value;
-                                }
-                                
-                                // convolve the central area until the east border
-                                
-                                int eastBorder = width - kRadius;
-                                
-                                for (; x < eastBorder; x++, xy++)
-                                {
-                                    double value = 0;
-                                    
-                                    for (int kIndex = 0, kOffset = -kRadius; kOffset <= kRadius; kOffset++, kIndex++)
-                                    {
-                                        value += inSlice[xy + kOffset] * kernel[kIndex];
-                                    }
-                                    
-                                    outSlice[xy] = value;
-                                }
-                                
-                                // convolve the east border
-                                
-                                for (; x < width; x++, xy++)
-                                {
-                                    double value = 0;
-                                    
-                                    for (int kIndex = 0, kOffset = -kRadius; kOffset <= kRadius; kOffset++, kIndex++)
-                                    {
-                                        int inOffset = xy + kOffset;
-                                        if (inOffset >= xEndOffset) inOffset = xEndOffset - (inOffset - xEndOffset);
-                                        
-                                        value += inSlice[inOffset] * kernel[kIndex];
-                                    }
-                                    
-                                    outSlice[xy] = value;
-                                }
-                            }
-                        }
-                    }));
+                    for (int z = 0; z < kSize; z++)
+                        kernel_Z_XY[z] = new double[] { kernel[z] };
+                }
+                else
+                {
+                    kernel_Z_XY[0] = kernel;
                 }
                 
-                for (Future<?> task : tasks)
-                    task.get();
+                // the transforms always run in double precision
+                Object[] padded = Padding.padStack(input, workType, width, height, kWidth, kHeight, kDepth, zeroEdges, DataType.DOUBLE);
                 
+                FFTConvolution fft = new FFTConvolution(service, kernel_Z_XY, kWidth, kHeight, kDepth, width, height, input.length);
+                fft.convolve(service, (double[][]) padded, output);
+                return;
             }
-                break;
             
-            case Y: {
-                final int kRadiusY = kRadius * width;
-                
-                ArrayList<Future<?>> tasks = new ArrayList<Future<?>>(input.length);
-                
+            final Object k = toWorkType(kernel, input);
+            
+            ArrayList<Future<?>> tasks = new ArrayList<Future<?>>(input.length);
+            
+            switch (axis)
+            {
+            case X: {
                 for (int z = 0; z < input.length; z++)
                 {
-                    final double[] in = input[z];
-                    final double[] out = output[z];
+                    final Object inSlice = input[z];
+                    final Object outSlice = output[z];
                     
                     tasks.add(service.submit(new Runnable()
                     {
                         public void run()
                         {
+                            // current line, with a halo of the kernel radius
+                            Object line = Array1DUtil.createArray(workType, width + 2 * kRadius);
                             
-                            int xy = 0;
-                            
-                            int y = 0;
-                            
-                            // convolve the north border (mirror condition)
-                            
-                            for (; y < kRadius; y++)
+                            for (int y = 0, xy = 0; y < height; y++, xy += width)
                             {
-                                for (int x = 0; x < width; x++, xy++)
-                                {
-                                    int yStartOffset = x;
-                                    
-                                    double value = 0;
-                                    
-                                    for (int kIndex = 0, kOffset = -kRadiusY; kOffset <= kRadiusY; kOffset += width, kIndex++)
-                                    {
-                                        int inOffset = xy + kOffset;
-                                        if (inOffset < 0) inOffset = yStartOffset - inOffset;
-                                        
-                                        value += in[inOffset] * kernel[kIndex];
-                                    }
-                                    
-                                    out[xy] = value;
-                                }
-                            }
-                            
-                            // convolve the central area until the south border
-                            
-                            int southBorder = height - kRadius;
-                            
-                            for (; y < southBorder; y++)
-                            {
-                                for (int x = 0; x < width; x++, xy++)
-                                {
-                                    double value = 0;
-                                    
-                                    for (int kIndex = 0, kOffset = -kRadiusY; kOffset <= kRadiusY; kOffset += width, kIndex++)
-                                    {
-                                        value += in[xy + kOffset] * kernel[kIndex];
-                                    }
-                                    
-                                    out[xy] = value;
-                                }
-                            }
-                            
-                            // convolve the south border
-                            
-                            for (; y < height; y++)
-                            {
-                                for (int x = 0; x < width; x++, xy++)
-                                {
-                                    int yEndOffset = sliceSize - width + x;
-                                    
-                                    double value = 0;
-                                    
-                                    for (int kIndex = 0, kOffset = -kRadiusY; kOffset <= kRadiusY; kOffset += width, kIndex++)
-                                    {
-                                        int inOffset = xy + kOffset;
-                                        if (inOffset >= sliceSize) inOffset = yEndOffset - (inOffset - yEndOffset);
-                                        
-                                        value += in[inOffset] * kernel[kIndex];
-                                    }
-                                    
-                                    out[xy] = value;
-                                }
+                                Padding.padLine(inSlice, xy, workType, width, line, 0, kRadius, zeroEdges);
+                                
+                                convolveLine(line, 0, 1, outSlice, xy, width, k, false);
                             }
                         }
                     }));
                 }
-                
-                for (Future<?> task : tasks)
-                    task.get();
-                
+            }
+                break;
+            
+            case Y: {
+                for (int z = 0; z < input.length; z++)
+                    tasks.add(service.submit(convolveSliceY(input[z], output[z], width, height, k, zeroEdges, false)));
             }
                 break;
             
             case Z: {
-                ArrayList<Future<?>> tasks = new ArrayList<Future<?>>(input.length);
-                
-                int z = 0;
-                for (; z < kRadius; z++)
-                {
-                    final double[] out = output[z];
-                    final int slice = z;
-                    tasks.add(service.submit(new Runnable()
-                    {
-                        public void run()
-                        {
-                            
-                            int xy = 0;
-                            
-                            for (int y = 0; y < height; y++)
-                            {
-                                for (int x = 0; x < width; x++, xy++)
-                                {
-                                    double value = 0;
-                                    
-                                    for (int kIndex = 0, kOffset = -kRadius; kOffset <= kRadius; kOffset++, kIndex++)
-                                    {
-                                        int inSlice = slice + kOffset;
-                                        if (inSlice < 0) inSlice = -inSlice;
-                                        
-                                        value += input[inSlice][xy] * kernel[kIndex];
-                                    }
-                                    
-                                    out[xy] = value;
-                                }
-                            }
-                        }
-                    }));
-                }
-                
-                int bottomBorder = input.length - kRadius;
-                
-                for (; z < bottomBorder; z++)
-                {
-                    final double[] out = output[z];
-                    final int slice = z;
-                    tasks.add(service.submit(new Runnable()
-                    {
-                        public void run()
-                        {
-                            
-                            int xy = 0;
-                            
-                            for (int y = 0; y < height; y++)
-                            {
-                                for (int x = 0; x < width; x++, xy++)
-                                {
-                                    double value = 0;
-                                    
-                                    for (int kIndex = 0, kOffset = -kRadius; kOffset <= kRadius; kOffset++, kIndex++)
-                                    {
-                                        value += input[slice + kOffset][xy] * kernel[kIndex];
-                                    }
-                                    
-                                    out[xy] = value;
-                                }
-                            }
-                        }
-                    }));
-                }
+                // slices with a halo of the kernel radius (no copy)
+                final Object[] in = Padding.padSlices(input, kRadius, zeroEdges);
                 
-                final int zEndOffset = input.length - 1;
-                
-                for (; z < input.length; z++)
+                for (int z = 0; z < input.length; z++)
                 {
-                    final double[] out = output[z];
+                    final Object out = output[z];
                     final int slice = z;
+                    
                     tasks.add(service.submit(new Runnable()
                     {
                         public void run()
                         {
-                            int xy = 0;
-                            
-                            for (int y = 0; y < height; y++)
-                            {
-                                for (int x = 0; x < width; x++, xy++)
-                                {
-                                    double value = 0;
-                                    
-                                    for (int kIndex = 0, kOffset = -kRadius; kOffset <= kRadius; kOffset++, kIndex++)
-                                    {
-                                        int inSlice = slice + kOffset;
-                                        if (inSlice >= input.length) inSlice = zEndOffset - (inSlice - zEndOffset);
-                                        
-                                        value += input[inSlice][xy] * kernel[kIndex];
-                                    }
-                                    
-                                    out[xy] = value;
-                                }
-                            }
+                            convolveSlices(in, slice, out, k);
                         }
                     }));
                 }
-                
-                for (Future<?> task : tasks)
-                    task.get();
-                
             }
                 break;
             }
+            
+            for (Future<?> task : tasks)
+                task.get();
         }
         catch (ArrayIndexOutOfBoundsException e)
         {
@@ -705,4 +666,168 @@ public class Convolution1D
         }
     }
     
+    /**
+     * @return a task convolving a slice along Y (direct convolution of the slice padded with halo
+     *         lines of the kernel radius)
+     * @param kernel
+     *            the kernel, in the working type of the slices (see
+     *            {@link #toWorkType(double[], Object[])})
+     * @param accumulate
+     *            true to add the result to the output slice, or false to overwrite it
+     */
+    private static Runnable convolveSliceY(final Object inSlice, final Object outSlice, final int width, final int height, final Object kernel, final boolean zeroEdges,
+            final boolean accumulate)
+    {
+        final DataType workType = inSlice instanceof float[] ? DataType.FLOAT : DataType.DOUBLE;
+        final int kRadius = (Array.getLength(kernel) - 1) / 2;
+        
+        return new Runnable()
+        {
+            public void run()
+            {
+                // current slice, with halo lines of the kernel radius
+                Object in = Padding.padSlice(inSlice, workType, width, height, 0, kRadius, zeroEdges, workType);
+                
+                convolveLine(in, 0, width, outSlice, 0, width * height, kernel, accumulate);
+            }
+        };
+    }
+    
+    /**
+     * Line primitive of the direct convolution along X and Y. For each of the <code>length</code>
+     * output values, computes output[outOffset + i] = &Sigma;<sub>k</sub> input[inOffset + i + k *
+     * stride] * kernel[k]
+     * 
+     * @param input
+     *            the input buffer (a double or float array)
+     * @param stride
+     *            the distance between two successive taps of the kernel in the input buffer (1
+     *            along X, the padded width along Y)
+     * @param output
+     *            the output buffer (of the same type as the input)
+     * @param kernel
+     *            the kernel (of the same type as the input)
+     * @param accumulate
+     *            true to add the result to the output, or false to overwrite it
+     */
+    private static void convolveLine(Object input, int inOffset, int stride, Object output, int outOffset, int length, Object kernel, boolean accumulate)
+    {
+        if (input instanceof float[])
+        {
+            final float[] in = (float[]) input, out = (float[]) output, k = (float[]) kernel;
+            
+            for (int i = 0; i < length; i++)
+            {
+                float value = 0;
+                
+                for (int kIndex = 0, kOffset = inOffset + i; kIndex < k.length; kIndex++, kOffset += stride)
+                    value += in[kOffset] * k[kIndex];
+                
+                out[outOffset + i] = accumulate ? out[outOffset + i] + value : value;
+            }
+        }
+        else
+        {
+            final double[] in = (double[]) input, out = (double[]) output, k = (double[]) kernel;
+            
+            for (int i = 0; i < length; i++)
+            {
+                double value = 0;
+                
+                for (int kIndex = 0, kOffset = inOffset + i; kIndex < k.length; kIndex++, kOffset += stride)
+                    value += in[kOffset] * k[kIndex];
+                
+                out[outOffset + i] = accumulate ? out[outOffset + i] + value : value;
+            }
+        }
+    }
+    
+    /**
+     * Slice primitive of the direct convolution along Z: computes output[xy] = &Sigma;<sub>k</sub>
+     * input[first + k][xy] * kernel[k]
+     * 
+     * @param input
+     *            the slices, given as a double[][] or float[][] array
+     * @param output
+     *            the output slice (of the same type as the input slices)
+     * @param kernel
+     *            the kernel (of the same type as the input slices)
+     */
+    private static void convolveSlices(Object[] input, int first, Object output, Object kernel)
+    {
+        if (output instanceof float[])
+        {
+            final float[][] in = (float[][]) input;
+            final float[] out = (float[]) output, k = (float[]) kernel;
+            
+            for (int xy = 0; xy < out.length; xy++)
+            {
+                float value = 0;
+                
+                for (int kIndex = 0; kIndex < k.length; kIndex++)
+                    value += in[first + kIndex][xy] * k[kIndex];
+                
+                out[xy] = value;
+            }
+        }
+        else
+        {
+            final double[][] in = (double[][]) input;
+            final double[] out = (double[]) output, k = (double[]) kernel;
+            
+            for (int xy = 0; xy < out.length; xy++)
+            {
+                double value = 0;
+                
+                for (int kIndex = 0; kIndex < k.length; kIndex++)
+                    value += in[first + kIndex][xy] * k[kIndex];
+                
+                out[xy] = value;
+            }
+        }
+    }
+    
+    /**
+     * @return the given kernel in the working type of the given stack, i.e. the kernel itself for
+     *         a double[][] stack, or its weights rounded to single precision for a float[][] stack
+     */
+    private static Object toWorkType(double[] kernel, Object[] stack)
+    {
+        if (!(stack instanceof float[][])) return kernel;
+        
+        float[] k = new float[kernel.length];
+        for (int kIndex = 0; kIndex < kernel.length; kIndex++)
+            k[kIndex] = (float) kernel[kIndex];
+        
+        return k;
+    }
+    
+    /**
+     * @return the type of the working buffers for data of the given type ({@link DataType#FLOAT}
+     *         or {@link DataType#DOUBLE}, see {@link Precision#forType(DataType)})
+     */
+    private static DataType workType(Precision precision, DataType type)
+    {
+        return precision.forType(type) == Precision.FLOAT ? DataType.FLOAT : DataType.DOUBLE;
+    }
+    
+    /**
+     * Converts a working buffer to the given data type (see {@link Rounding})
+     * 
+     * @param work_XY
+     *            the working buffer (a double or float array)
+     * @param out_XY
+     *            the output array, of the specified type
+     */
+    private static void toArray(Object work_XY, Object out_XY, DataType type)
+    {
+        if (work_XY instanceof float[])
+        {
+            Rounding.toSafeArray((float[]) work_XY, 0, out_XY, 0, ((float[]) work_XY).length, type);
+        }
+        else
+        {
+            Rounding.toSafeArray((double[]) work_XY, 0, out_XY, 0, ((double[]) work_XY).length, type);
+        }
+    }
 }
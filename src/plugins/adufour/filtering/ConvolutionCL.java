@@ -3,7 +3,6 @@ package plugins.adufour.filtering;
 import icy.image.IcyBufferedImage;
 import icy.sequence.Sequence;
 import icy.type.DataType;
-import icy.type.collection.array.Array1DUtil;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
@@ -37,19 +36,23 @@ public class ConvolutionCL
 	
 	public void convolve(Sequence input, Sequence kernel, boolean zeroEdge, int nbIter, VarBoolean stopFlag) throws CLException, CLBuildException
 	{
-		String funcName = zeroEdge ? "convolve2D" : "convolve2D_mirror";
-		
 		CLKernel clKernel;
 		
-		clKernel = clProgram.createKernel(funcName);
+		clKernel = clProgram.createKernel("convolve2D");
+		
+		int width = input.getSizeX();
+		int height = input.getSizeY();
+		int kWidth = kernel.getSizeX() >> 1;
+		int kHeight = kernel.getSizeY() >> 1;
 		
-		int dataSize = input.getSizeX() * input.getSizeY();
+		int dataSize = width * height;
 		
 		CLEvent event;
 		
 		float[] data = new float[dataSize];
 		
-		CLFloatBuffer cl_inBuffer = clContext.createFloatBuffer(Usage.Input, dataSize);
+		// the input buffer holds the image with a halo of the kernel radius (see Padding)
+		CLFloatBuffer cl_inBuffer = clContext.createFloatBuffer(Usage.Input, (width + 2 * kWidth) * (height + 2 * kHeight));
 		
 		double[] kernelDouble = kernel.getDataXYAsDouble(0, 0, 0);
 		
@@ -66,7 +69,7 @@ public class ConvolutionCL
 		CLFloatBuffer cl_outBuffer = clContext.createFloatBuffer(Usage.Output, outBuffer, false);
 		
 		// set the kernel arguments in order
-		clKernel.setArgs(cl_inBuffer, input.getSizeX(), input.getSizeY(), cl_kBuffer, kernel.getSizeX() >> 1, kernel.getSizeY() >> 1, cl_outBuffer);
+		clKernel.setArgs(cl_inBuffer, width, height, cl_kBuffer, kWidth, kHeight, cl_outBuffer);
 		
 		FloatBuffer fb;
 		
@@ -82,15 +85,18 @@ public class ConvolutionCL
 				
 				for (int c = 0; c < input.getSizeC(); c++)
 				{
-					// convert image to float
-					Array1DUtil.arrayToFloatArray(image.getDataXY(c), data, type.isSigned());
+					// pad the image with the boundary condition (directly from the image data)
+					float[] padded = (float[]) Padding.padSlice(image.getDataXY(c), type, width, height, kWidth, kHeight, zeroEdge, DataType.FLOAT);
 					
 					for (int i = 0; i < nbIter; i++)
 					{
+						// further iterations convolve the result of the previous one
+						if (i > 0) padded = (float[]) Padding.padSlice(data, DataType.FLOAT, width, height, kWidth, kHeight, zeroEdge, DataType.FLOAT);
+						
 						// map the GPU buffer to local memory
 						fb = cl_inBuffer.map(clQueue, MapFlags.Write, event);
 						// write the image data to it
-						fb.put(data);
+						fb.put(padded);
 						fb.rewind();
 						// release the mapping
 						event = cl_inBuffer.unmap(clQueue, fb);
@@ -108,12 +114,14 @@ public class ConvolutionCL
 						// rewind the buffer for future iterations
 						outBuffer.rewind();
 						
-						// convert back to image data
-						Array1DUtil.floatArrayToSafeArray(data, image.getDataXY(c), type.isSigned());
-						
-						if (stopFlag.getValue())
-							break convolution;
+						if (stopFlag.getValue()) break;
 					}
+					
+					// convert back to image data
+					Rounding.toSafeArray(data, 0, image.getDataXY(c), 0, data.length, type);
+					
+					if (stopFlag.getValue())
+						break convolution;
 				}
 			}
 		}
@@ -0,0 +1,363 @@
+package plugins.adufour.filtering;
+
+import java.util.Arrays;
+
+/**
+ * One-dimensional complex Fast Fourier Transform of arbitrary length. Lengths made of small prime
+ * factors are transformed with a mixed-radix Cooley-Tukey algorithm, other lengths are transformed
+ * with Bluestein's algorithm (as a convolution of power-of-two length).<br>
+ * Instances hold work buffers: each thread should use its own instance.
+ */
+final class FFT
+{
+    /**
+     * Largest prime factor transformed directly (larger factors use Bluestein's algorithm)
+     */
+    private static final int MAX_DIRECT_FACTOR = 7;
+    
+    private final int        n;
+    
+    /**
+     * Factors of n, in the order of the recursion
+     */
+    private final int[]      factors;
+    
+    /**
+     * Twiddle factors: cos and sin of (-2.pi.k/n), k in [0,n)
+     */
+    private final double[]   cos, sin;
+    
+    /**
+     * Work buffers of the mixed-radix algorithm
+     */
+    private final double[]   workRe, workIm, butterflyRe, butterflyIm;
+    
+    /**
+     * Bluestein's algorithm (null if n is transformed directly)
+     */
+    private final FFT        bluestein;
+    
+    private final double[]   chirpRe, chirpIm, chirpSpectrumRe, chirpSpectrumIm, bluesteinRe, bluesteinIm;
+    
+    /**
+     * Creates a transform of the given length
+     * 
+     * @param n
+     *            the transform length (strictly positive)
+     */
+    FFT(int n)
+    {
+        if (n < 1) throw new IllegalArgumentException("Invalid FFT length: " + n);
+        
+        this.n = n;
+        
+        int[] f = factorize(n);
+        
+        if (f[f.length - 1] > MAX_DIRECT_FACTOR)
+        {
+            factors = null;
+            cos = sin = workRe = workIm = butterflyRe = butterflyIm = null;
+            
+            // X[k] = conj(w[k]) . sum(x[j] . conj(w[j]) . w[k - j]), with w[j] = exp(i.pi.j^2/n)
+            int m = 1;
+            while (m < 2 * n - 1)
+                m <<= 1;
+            
+            bluestein = new FFT(m);
+            
+            chirpRe = new double[n];
+            chirpIm = new double[n];
+            
+            for (int j = 0; j < n; j++)
+            {
+                // j^2 modulo 2n keeps the angle accurate for large j
+                double angle = Math.PI * ((long) j * j % (2L * n)) / n;
+                chirpRe[j] = Math.cos(angle);
+                chirpIm[j] = Math.sin(angle);
+            }
+            
+            chirpSpectrumRe = new double[m];
+            chirpSpectrumIm = new double[m];
+            
+            chirpSpectrumRe[0] = chirpRe[0];
+            chirpSpectrumIm[0] = chirpIm[0];
+            
+            for (int j = 1; j < n; j++)
+            {
+                chirpSpectrumRe[j] = chirpSpectrumRe[m - j] = chirpRe[j];
+                chirpSpectrumIm[j] = chirpSpectrumIm[m - j] = chirpIm[j];
+            }
+            
+            bluestein.forward(chirpSpectrumRe, chirpSpectrumIm);
+            
+            bluesteinRe = new double[m];
+            bluesteinIm = new double[m];
+        }
+        else
+        {
+            factors = f;
+            bluestein = null;
+            chirpRe = chirpIm = chirpSpectrumRe = chirpSpectrumIm = bluesteinRe = bluesteinIm = null;
+            
+            cos = new double[n];
+            sin = new double[n];
+            
+            for (int k = 0; k < n; k++)
+            {
+                double angle = -2 * Math.PI * k / n;
+                cos[k] = Math.cos(angle);
+                sin[k] = Math.sin(angle);
+            }
+            
+            workRe = new double[n];
+            workIm = new double[n];
+            butterflyRe = new double[MAX_DIRECT_FACTOR];
+            butterflyIm = new double[MAX_DIRECT_FACTOR];
+        }
+    }
+    
+    /**
+     * @return the prime factors of n, in increasing order (except that factors 2 are grouped by 4
+     *         where possible, and placed first)
+     */
+    private static int[] factorize(int n)
+    {
+        int[] f = new int[32];
+        int nbFactors = 0;
+        
+        while (n % 4 == 0)
+        {
+            f[nbFactors++] = 4;
+            n /= 4;
+        }
+        
+        for (int p = 2; n > 1; p++)
+        {
+            if ((long) p * p > n) p = n;
+            
+            while (n % p == 0)
+            {
+                f[nbFactors++] = p;
+                n /= p;
+            }
+        }
+        
+        if (nbFactors == 0) return new int[] { 1 };
+        
+        int[] factors = new int[nbFactors];
+        System.arraycopy(f, 0, factors, 0, nbFactors);
+        return factors;
+    }
+    
+    /**
+     * @param n
+     *            a length
+     * @return the smallest length greater than or equal to n that has no prime factor larger than
+     *         {@value #MAX_DIRECT_FACTOR} (i.e. that is transformed efficiently)
+     */
+    static int nextFastSize(int n)
+    {
+        for (int size = Math.max(n, 1);; size++)
+        {
+            int m = size;
+            for (int p = 2; p <= MAX_DIRECT_FACTOR; p++)
+                while (m % p == 0)
+                    m /= p;
+            
+            if (m == 1) return size;
+        }
+    }
+    
+    /**
+     * @return the transform length
+     */
+    int getSize()
+    {
+        return n;
+    }
+    
+    /**
+     * Computes the forward transform (with a negative exponent) in place
+     * 
+     * @param re
+     *            the real part of the data (at least n values)
+     * @param im
+     *            the imaginary part of the data (at least n values)
+     */
+    void forward(double[] re, double[] im)
+    {
+        if (n == 1) return;
+        
+        if (bluestein != null)
+        {
+            forwardBluestein(re, im);
+            return;
+        }
+        
+        System.arraycopy(re, 0, workRe, 0, n);
+        System.arraycopy(im, 0, workIm, 0, n);
+        
+        transform(workRe, workIm, 0, 1, re, im, 0, n, 0);
+    }
+    
+    /**
+     * Computes the inverse transform (with a positive exponent) in place, without the 1/n
+     * normalization factor
+     * 
+     * @param re
+     *            the real part of the data (at least n values)
+     * @param im
+     *            the imaginary part of the data (at least n values)
+     */
+    void inverse(double[] re, double[] im)
+    {
+        // ifft(x) = conj(fft(conj(x)))
+        for (int i = 0; i < n; i++)
+            im[i] = -im[i];
+        
+        forward(re, im);
+        
+        for (int i = 0; i < n; i++)
+            im[i] = -im[i];
+    }
+    
+    /**
+     * Recursive (out-of-place) mixed-radix transform
+     * 
+     * @param inRe
+     *            input real part
+     * @param inIm
+     *            input imaginary part
+     * @param inOffset
+     *            offset of the first input element
+     * @param stride
+     *            distance between two input elements
+     * @param outRe
+     *            output real part
+     * @param outIm
+     *            output imaginary part
+     * @param outOffset
+     *            offset of the first (contiguous) output element
+     * @param length
+     *            length of the sub-transform
+     * @param factor
+     *            index of the factor of this recursion level
+     */
+    private void transform(double[] inRe, double[] inIm, int inOffset, int stride, double[] outRe, double[] outIm, int outOffset, int length, int factor)
+    {
+        if (length == 1)
+        {
+            outRe[outOffset] = inRe[inOffset];
+            outIm[outOffset] = inIm[inOffset];
+            return;
+        }
+        
+        final int p = factors[factor];
+        final int m = length / p;
+        
+        // transform the p decimated sub-sequences
+        for (int q = 0; q < p; q++)
+            transform(inRe, inIm, inOffset + q * stride, stride * p, outRe, outIm, outOffset + q * m, m, factor + 1);
+        
+        // twiddle factors of this level are those of n, every (n / length) entries
+        final int twiddleStep = n / length;
+        
+        for (int k = 0; k < m; k++)
+        {
+            // twiddled sub-transform values (q.k.twiddleStep < p.m.twiddleStep = n)
+            for (int q = 0, index = outOffset + k, t = 0; q < p; q++, index += m, t += k * twiddleStep)
+            {
+                double re = outRe[index], im = outIm[index];
+                butterflyRe[q] = re * cos[t] - im * sin[t];
+                butterflyIm[q] = re * sin[t] + im * cos[t];
+            }
+            
+            // p-point transform of the twiddled values
+            switch (p)
+            {
+            case 2: {
+                double r0 = butterflyRe[0], i0 = butterflyIm[0], r1 = butterflyRe[1], i1 = butterflyIm[1];
+                outRe[outOffset + k] = r0 + r1;
+                outIm[outOffset + k] = i0 + i1;
+                outRe[outOffset + m + k] = r0 - r1;
+                outIm[outOffset + m + k] = i0 - i1;
+            }
+                break;
+            
+            case 4: {
+                double r0 = butterflyRe[0], i0 = butterflyIm[0], r1 = butterflyRe[1], i1 = butterflyIm[1];
+                double r2 = butterflyRe[2], i2 = butterflyIm[2], r3 = butterflyRe[3], i3 = butterflyIm[3];
+                double sr = r0 + r2, si = i0 + i2, dr = r0 - r2, di = i0 - i2;
+                double tr = r1 + r3, ti = i1 + i3, ur = r1 - r3, ui = i1 - i3;
+                outRe[outOffset + k] = sr + tr;
+                outIm[outOffset + k] = si + ti;
+                // (-i).u
+                outRe[outOffset + m + k] = dr + ui;
+                outIm[outOffset + m + k] = di - ur;
+                outRe[outOffset + 2 * m + k] = sr - tr;
+                outIm[outOffset + 2 * m + k] = si - ti;
+                // (+i).u
+                outRe[outOffset + 3 * m + k] = dr - ui;
+                outIm[outOffset + 3 * m + k] = di + ur;
+            }
+                break;
+            
+            default: {
+                // generic p-point DFT, with the twiddle factors of p taken from those of n
+                final int rootStep = n / p;
+                
+                for (int s = 0; s < p; s++)
+                {
+                    double re = butterflyRe[0], im = butterflyIm[0];
+                    
+                    for (int q = 1, t = s * rootStep; q < p; q++, t += s * rootStep)
+                    {
+                        if (t >= n) t -= n;
+                        re += butterflyRe[q] * cos[t] - butterflyIm[q] * sin[t];
+                        im += butterflyRe[q] * sin[t] + butterflyIm[q] * cos[t];
+                    }
+                    
+                    outRe[outOffset + s * m + k] = re;
+                    outIm[outOffset + s * m + k] = im;
+                }
+            }
+            }
+        }
+    }
+    
+    private void forwardBluestein(double[] re, double[] im)
+    {
+        final int m = bluesteinRe.length;
+        
+        // a[j] = x[j] . conj(w[j])
+        for (int j = 0; j < n; j++)
+        {
+            bluesteinRe[j] = re[j] * chirpRe[j] + im[j] * chirpIm[j];
+            bluesteinIm[j] = im[j] * chirpRe[j] - re[j] * chirpIm[j];
+        }
+        
+        Arrays.fill(bluesteinRe, n, m, 0.0);
+        Arrays.fill(bluesteinIm, n, m, 0.0);
+        
+        // circular convolution with w
+        bluestein.forward(bluesteinRe, bluesteinIm);
+        
+        for (int k = 0; k < m; k++)
+        {
+            double r = bluesteinRe[k] * chirpSpectrumRe[k] - bluesteinIm[k] * chirpSpectrumIm[k];
+            double i = bluesteinRe[k] * chirpSpectrumIm[k] + bluesteinIm[k] * chirpSpectrumRe[k];
+            bluesteinRe[k] = r;
+            bluesteinIm[k] = i;
+        }
+        
+        bluestein.inverse(bluesteinRe, bluesteinIm);
+        
+        // X[k] = conj(w[k]) . (a * w)[k] / m
+        for (int k = 0; k < n; k++)
+        {
+            double r = bluesteinRe[k] / m, i = bluesteinIm[k] / m;
+            re[k] = r * chirpRe[k] + i * chirpIm[k];
+            im[k] = i * chirpRe[k] - r * chirpIm[k];
+        }
+    }
+}
@@ -46,7 +46,7 @@ public class FilterToolbox extends EzPlug implements EzStoppable
     
     public enum FilterType
     {
-        CLASSIC, SEPARABLE, SELECTION
+        CLASSIC, SEPARABLE, SELECTION, BANK
     }
     
     public EzVarSequence                     input            = new EzVarSequence("input");
@@ -69,6 +69,11 @@ public class FilterToolbox extends EzPlug implements EzStoppable
     public EzVarDouble                       gaborKy          = new EzVarDouble("Ky", 0, 100, 0.1);
     public EzVarBoolean                      gaborSymmetric   = new EzVarBoolean("Symmertric", true);
     
+    public EzVarDouble                       lowRankTolerance = new EzVarDouble("Low-rank tolerance", 0.0, 0.0, 1.0, 0.001);
+    
+    public EzVarEnum<KernelBank>             kernelBank       = new EzVarEnum<KernelBank>("Kernel bank", KernelBank.values());
+    public EzVarEnum<KernelBank.Output>      bankOutput       = new EzVarEnum<KernelBank.Output>("Bank output", KernelBank.Output.values());
+    
     public EzVarPlugin<SelectionFilter>      selectionFilter  = new EzVarPlugin<SelectionFilter>("selection filter", SelectionFilter.class);
     public EzVarInteger                      selectionRadiusX = new EzVarInteger("Filter radius (X)", 1, 0, MAX_KERNEL_SIZE, 1);
     public EzVarInteger                      selectionRadiusY = new EzVarInteger("Filter radius (Y)", 1, 0, MAX_KERNEL_SIZE, 1);
@@ -76,6 +81,8 @@ public class FilterToolbox extends EzPlug implements EzStoppable
     
     public EzVarBoolean                      zeroEdge         = new EzVarBoolean("Zero on edge", false);
     
+    public EzVarEnum<Precision>              precision        = new EzVarEnum<Precision>("Precision", Precision.values(), Precision.DOUBLE);
+    
     public EzVarInteger                      userKernelWidth  = new EzVarInteger("kernel width", 3, MAX_KERNEL_SIZE, 2);
     public EzVarInteger                      userKernelHeight = new EzVarInteger("kernel height", 1, MAX_KERNEL_SIZE, 2);
     public ArrayList<EzVarDoubleArrayNative> kernelLines      = new ArrayList<EzVarDoubleArrayNative>(1);
@@ -204,12 +211,22 @@ public class FilterToolbox extends EzPlug implements EzStoppable
         addEzComponent(customSequenceGroup);
         kernel2D.addVisibilityTriggerTo(customSequenceGroup, Kernels2D.CUSTOM_SEQUENCE);
         
+        addEzComponent(lowRankTolerance);
+        filterType.addVisibilityTriggerTo(lowRankTolerance, FilterType.CLASSIC);
+        
         EzGroup groupSelection = new EzGroup("Selection filter", selectionFilter, selectionRadiusX, selectionRadiusY, selectionRadiusZ);
         addEzComponent(groupSelection);
         filterType.addVisibilityTriggerTo(groupSelection, FilterType.SELECTION);
         
+        EzGroup groupBank = new EzGroup("Kernel bank", kernelBank, bankOutput);
+        addEzComponent(groupBank);
+        filterType.addVisibilityTriggerTo(groupBank, FilterType.BANK);
+        
         addEzComponent(zeroEdge);
-        filterType.addVisibilityTriggerTo(zeroEdge, FilterType.CLASSIC, FilterType.SEPARABLE);
+        filterType.addVisibilityTriggerTo(zeroEdge, FilterType.CLASSIC, FilterType.SEPARABLE, FilterType.BANK);
+        
+        addEzComponent(precision);
+        filterType.addVisibilityTriggerTo(precision, FilterType.CLASSIC, FilterType.SEPARABLE);
         
         addEzComponent(userKernelWidth);
         kernel1D.addVisibilityTriggerTo(userKernelWidth, Kernels1D.CUSTOM);
@@ -274,6 +291,10 @@ public class FilterToolbox extends EzPlug implements EzStoppable
                 executeClassic(inSeq);
                 break;
             }
+            case BANK: {
+                executeBank(inSeq);
+                break;
+            }
             case SELECTION: {
                 try
                 {
@@ -361,6 +382,37 @@ public class FilterToolbox extends EzPlug implements EzStoppable
         Sequence kernel = k2d.toSequence();
         Sequence output = null;
         
+        // kernels of low rank are convolved as a sum of separable terms (see SeparableKernel),
+        // unless the user asked for OpenCL, or the direct convolution is exact in integer arithmetic
+        double[] kernelXY = kernel.getDataXYAsDouble(0, 0, 0);
+        
+        if (!useOpenCL.getValue() && kernel.getSizeX() % 2 == 1 && kernel.getSizeY() % 2 == 1
+                && !Convolution.isIntegerExact(inSeq.getDataType_(), Convolution.getIntegerNorm(new double[][] { kernelXY }), iterations.getValue()))
+        {
+            SeparableKernel separable = new SeparableKernel(kernelXY, kernel.getSizeX(), kernel.getSizeY());
+            
+            int rank = separable.getRank(lowRankTolerance.getValue());
+            
+            if (rank > 0 && separable.isFasterThanDirect(rank))
+            {
+                try
+                {
+                    output = SequenceUtil.getCopy(inSeq);
+                    Convolution1D.convolve(output, separable.getKernelsX(rank), separable.getKernelsY(rank), zeroEdge.getValue(), iterations.getValue(), stopFlag,
+                            precision.getValue());
+                }
+                catch (ConvolutionException e)
+                {
+                    throw new EzException(e.getMessage(), true);
+                }
+                
+                output.setName(inSeq.getName() + " * " + kernel.getName());
+                output.updateChannelsBounds(true);
+                addSequence(output);
+                return;
+            }
+        }
+        
         boolean openCL_failed = false;
         
         if (useOpenCL.getValue())
@@ -398,7 +450,7 @@ public class FilterToolbox extends EzPlug implements EzStoppable
                 }
             };
             c.progress.addListener(ld);
-            output = c.convolve(input.getValue(true), kernel, zeroEdge.getValue(), iterations.getValue());
+            output = c.convolve(input.getValue(true), kernel, zeroEdge.getValue(), iterations.getValue(), precision.getValue());
             c.progress.removeListener(ld);
             c.service.shutdown();
             this.filter = null;
@@ -409,6 +461,37 @@ public class FilterToolbox extends EzPlug implements EzStoppable
         addSequence(output);
     }
     
+    private void executeBank(Sequence inSeq)
+    {
+        KernelBank bank = kernelBank.getValue();
+        
+        final Convolution c = new Convolution();
+        this.filter = c;
+        final VarListener<Double> ld = new VarListener<Double>()
+        {
+            @Override
+            public void valueChanged(Var<Double> source, Double oldValue, Double newValue)
+            {
+                getUI().setProgressBarValue(newValue);
+            }
+            
+            @Override
+            public void referenceChanged(Var<Double> source, Var<? extends Double> oldReference, Var<? extends Double> newReference)
+            {
+                
+            }
+        };
+        c.progress.addListener(ld);
+        Sequence output = c.convolveBank(inSeq, bank.toSequences(), zeroEdge.getValue(), bankOutput.getValue());
+        c.progress.removeListener(ld);
+        c.service.shutdown();
+        this.filter = null;
+        
+        output.setName(inSeq.getName() + " * " + bank + " (" + bankOutput.getValue() + ")");
+        output.updateChannelsBounds(true);
+        addSequence(output);
+    }
+    
     private void executeSeparable(Sequence inSeq)
     {
         Kernels1D k1d = kernel1D.getValue();
@@ -563,7 +646,7 @@ public class FilterToolbox extends EzPlug implements EzStoppable
                 try
                 {
                     Sequence output = SequenceUtil.getCopy(inSeq);
-                    Convolution1D.convolve(output, kernelX, kernelY, kernelZ, iterations.getValue(), stopFlag);
+                    Convolution1D.convolve(output, kernelX, kernelY, kernelZ, iterations.getValue(), stopFlag, precision.getValue());
                     String newName = output.getName() + " * " + k1d.name() + " (";
                     if (kernelX != null) newName += 'X';
                     if (kernelY != null) newName += 'Y';
@@ -582,7 +665,7 @@ public class FilterToolbox extends EzPlug implements EzStoppable
                 if (linearX.getValue()) try
                 {
                     Sequence output = SequenceUtil.getCopy(inSeq);
-                    Convolution1D.convolve(output, kernelX, null, null, iterations.getValue(), stopFlag);
+                    Convolution1D.convolve(output, kernelX, null, null, iterations.getValue(), stopFlag, precision.getValue());
                     output.setName(output.getName() + " * " + k1d.name() + " (X)");
                     output.dataChanged();
                     addSequence(output);
@@ -594,7 +677,7 @@ public class FilterToolbox extends EzPlug implements EzStoppable
                 if (linearX.getValue()) try
                 {
                     Sequence output = SequenceUtil.getCopy(inSeq);
-                    Convolution1D.convolve(output, null, kernelY, null, iterations.getValue(), stopFlag);
+                    Convolution1D.convolve(output, null, kernelY, null, iterations.getValue(), stopFlag, precision.getValue());
                     output.setName(output.getName() + " * " + k1d.name() + " (Y)");
                     output.dataChanged();
                     addSequence(output);
@@ -606,7 +689,7 @@ public class FilterToolbox extends EzPlug implements EzStoppable
                 if (linearX.getValue()) try
                 {
                     Sequence output = SequenceUtil.getCopy(inSeq);
-                    Convolution1D.convolve(output, null, null, kernelZ, iterations.getValue(), stopFlag);
+                    Convolution1D.convolve(output, null, null, kernelZ, iterations.getValue(), stopFlag, precision.getValue());
                     output.setName(output.getName() + " * " + k1d.name() + " (Z)");
                     output.dataChanged();
                     addSequence(output);
@@ -0,0 +1,554 @@
+package plugins.adufour.filtering;
+
+import icy.type.DataType;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Histogram-based median filter for 8- and 16-bit data. The stack is filtered by bands of lines
+ * (see {@link SelectionFilter#getBandHeight(int, int)}), each band sweeping all slices, and the
+ * data is processed in its native type (no conversion to double). The result is identical to
+ * {@link Median#process(double, double[], int)}.<br>
+ * 8-bit data is filtered with Perreault and H&eacute;bert's constant-time algorithm: each column
+ * of the neighborhood (along Y and Z) has its own histogram, which is updated by removing the row
+ * leaving the neighborhood and adding the entering one when moving to the next line. The histogram
+ * of the neighborhood slides along the line by adding the entering column histogram and removing
+ * the leaving one. Histograms are split into 16 coarse bins of 16 fine bins: the coarse bins of
+ * the neighborhood are updated at each step, while each block of fine bins is only brought up to
+ * date when the median falls in it. The cost per pixel is therefore independent of radiusX and
+ * radiusY (and linear in radiusZ).<br>
+ * 16-bit data (and small neighborhoods of 8-bit data, for which it is faster) is filtered with
+ * Huang's algorithm instead: the neighborhood histogram is updated along each line with the whole
+ * entering and leaving columns, i.e. O(r) per pixel in 2D and O(r<sup>2</sup>) in 3D. This is a
+ * deliberate deviation: column histograms of 16-bit data would require 65536 bins per column (256
+ * MB per band of a 1024 pixels wide image). The histogram is still split into coarse and fine
+ * levels, such that the median search never scans more than a few hundred bins.
+ */
+public class HistogramMedian
+{
+    /**
+     * Minimum number of pixels of a neighborhood column (along Y and Z) for which column histograms
+     * are faster than Huang's algorithm on 8-bit data
+     */
+    static final int MIN_COLUMN_SIZE = 7;
+    
+    /**
+     * @param type
+     *            a data type
+     * @return true if the specified data type can be processed by this filter
+     */
+    public static boolean isSupported(DataType type)
+    {
+        switch (type)
+        {
+        case UBYTE:
+        case BYTE:
+        case USHORT:
+        case SHORT:
+            return true;
+        default:
+            return false;
+        }
+    }
+    
+    /**
+     * Low-level 3D histogram median. <br>
+     * Warning: this is a low-level method. No check is performed on the input arguments, and the
+     * method may return successfully though with incorrect results. Make sure your arguments follow
+     * the indicated constraints.
+     * 
+     * @param service
+     *            the service used to process the data in parallel
+     * @param in_Z_XY
+     *            the input data, given as a [Z (slice)][XY (1D offset)] byte or short array
+     * @param out_Z_XY
+     *            the output data, given as a [Z (slice)][XY (1D offset)] array of the same type as
+     *            the input (must point to a different array than the input)
+     * @param type
+     *            the data type (must be {@link #isSupported(DataType) supported})
+     * @param width
+     *            the image width
+     * @param height
+     *            the image height
+     * @param radiusX
+     *            the neighborhood radius along X
+     * @param radiusY
+     *            the neighborhood radius along Y
+     * @param radiusZ
+     *            the neighborhood radius along Z
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public static void filter(ExecutorService service, Object[] in_Z_XY, Object[] out_Z_XY, DataType type, int width, int height, int radiusX, int radiusY, int radiusZ)
+            throws InterruptedException, ExecutionException
+    {
+        TaskPipeline pipeline = new TaskPipeline(service, Integer.MAX_VALUE, null);
+        
+        submit(pipeline, in_Z_XY, out_Z_XY, type, width, height, radiusX, radiusY, radiusZ, null);
+        
+        pipeline.await();
+    }
+    
+    /**
+     * Submits the tasks of
+     * {@link #filter(ExecutorService, Object[], Object[], DataType, int, int, int, int, int)} to
+     * the given pipeline (one task per band of lines), without waiting for them to complete
+     * 
+     * @param pipeline
+     *            the pipeline running the tasks
+     * @param monitor
+     *            the monitor to check for cancellation and to report the filtered lines to (or
+     *            null)
+     * @throws InterruptedException
+     * @throws ExecutionException
+     *             if one of the tasks awaited by the pipeline has failed
+     */
+    static void submit(TaskPipeline pipeline, final Object[] in_Z_XY, final Object[] out_Z_XY, final DataType type, final int width, final int height,
+            final int radiusX, final int radiusY, final int radiusZ, final TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        final int bandHeight = SelectionFilter.getBandHeight(height, radiusY);
+        
+        for (int y = 0; y < height; y += bandHeight)
+        {
+            final int minY = y;
+            final int maxY = Math.min(y + bandHeight, height);
+            
+            pipeline.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    filterBand(in_Z_XY, out_Z_XY, type, width, height, minY, maxY, radiusX, radiusY, radiusZ, monitor);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Filters a band of lines through all the slices of the stack
+     * 
+     * @param minY
+     *            the first line of the band
+     * @param maxY
+     *            the line after the last line of the band
+     * @param monitor
+     *            the monitor to check for cancellation and to report the filtered lines to (or
+     *            null)
+     */
+    static void filterBand(Object[] in_Z_XY, Object[] out_Z_XY, DataType type, int width, int height, int minY, int maxY, int radiusX, int radiusY, int radiusZ,
+            TaskMonitor monitor)
+    {
+        final int depth = in_Z_XY.length;
+        
+        final int columnSize = Math.min(2 * radiusY + 1, height) * Math.min(2 * radiusZ + 1, depth);
+        
+        if ((type == DataType.UBYTE || type == DataType.BYTE) && columnSize >= MIN_COLUMN_SIZE)
+        {
+            ColumnWindow window = new ColumnWindow(in_Z_XY, type, width, height, radiusX, radiusY, radiusZ);
+            
+            for (int z = 0; z < depth; z++)
+            {
+                if (monitor != null && monitor.isCancelled()) return;
+                
+                window.fill(z, minY);
+                
+                for (int y = minY; y < maxY; y++)
+                {
+                    if (y > minY) window.moveDown(y);
+                    
+                    window.filterLine(y, out_Z_XY[z]);
+                }
+                
+                if (monitor != null) monitor.add(maxY - minY);
+            }
+        }
+        else
+        {
+            Window window = new Window(in_Z_XY, type, width, height, radiusX, radiusY, radiusZ);
+            
+            for (int z = 0; z < depth; z++)
+            {
+                if (monitor != null && monitor.isCancelled()) return;
+                
+                for (int y = minY; y < maxY; y++)
+                    window.filterLine(z, y, out_Z_XY[z]);
+                
+                if (monitor != null) monitor.add(maxY - minY);
+            }
+        }
+    }
+    
+    /**
+     * Sliding neighborhood histogram along an image line (Huang's algorithm)
+     */
+    private static class Window
+    {
+        final Object[] in_Z_XY;
+        
+        final int      width, height, depth;
+        
+        final int      radiusX, radiusY, radiusZ;
+        
+        final boolean  isByte;
+        
+        /**
+         * The offset added to signed data to obtain a positive histogram index
+         */
+        final int      offset;
+        
+        /**
+         * Fine histogram (one bin per possible value)
+         */
+        final int[]    fine;
+        
+        /**
+         * Coarse histogram (one bin per block of fine bins)
+         */
+        final int[]    coarse;
+        
+        final int      shift, blockSize;
+        
+        /**
+         * The histogram index of the current median
+         */
+        int            median;
+        
+        /**
+         * The number of samples strictly below the current median
+         */
+        int            below;
+        
+        int            minY, maxY, minZ, maxZ;
+        
+        Window(Object[] in_Z_XY, DataType type, int width, int height, int radiusX, int radiusY, int radiusZ)
+        {
+            this.in_Z_XY = in_Z_XY;
+            this.width = width;
+            this.height = height;
+            this.depth = in_Z_XY.length;
+            this.radiusX = radiusX;
+            this.radiusY = radiusY;
+            this.radiusZ = radiusZ;
+            
+            isByte = (type == DataType.UBYTE || type == DataType.BYTE);
+            offset = type == DataType.BYTE ? 128 : type == DataType.SHORT ? 32768 : 0;
+            
+            fine = new int[isByte ? 1 << 8 : 1 << 16];
+            shift = isByte ? 4 : 8;
+            blockSize = 1 << shift;
+            coarse = new int[fine.length >> shift];
+        }
+        
+        /**
+         * Adds (or removes) the column of the neighborhood at the specified abscissa
+         */
+        private void updateColumn(int x, int increment)
+        {
+            for (int z = minZ; z < maxZ; z++)
+            {
+                if (isByte)
+                {
+                    byte[] slice = (byte[]) in_Z_XY[z];
+                    
+                    for (int y = minY, xy = minY * width + x; y < maxY; y++, xy += width)
+                        update(offset == 0 ? slice[xy] & 0xff : slice[xy] + offset, increment);
+                }
+                else
+                {
+                    short[] slice = (short[]) in_Z_XY[z];
+                    
+                    for (int y = minY, xy = minY * width + x; y < maxY; y++, xy += width)
+                        update(offset == 0 ? slice[xy] & 0xffff : slice[xy] + offset, increment);
+                }
+            }
+        }
+        
+        private void update(int value, int increment)
+        {
+            fine[value] += increment;
+            coarse[value >> shift] += increment;
+            if (value < median) below += increment;
+        }
+        
+        /**
+         * Moves the current median such that it points to the element of given rank in the
+         * histogram
+         * 
+         * @param rank
+         *            the 0-based rank of the element to find
+         */
+        private void seek(int rank)
+        {
+            // move down
+            while (below > rank)
+            {
+                if ((median & (blockSize - 1)) == 0 && below - coarse[(median >> shift) - 1] > rank)
+                {
+                    // skip an entire block
+                    below -= coarse[(median >> shift) - 1];
+                    median -= blockSize;
+                }
+                else
+                {
+                    median--;
+                    below -= fine[median];
+                }
+            }
+            
+            // move up
+            while (below + fine[median] <= rank)
+            {
+                if ((median & (blockSize - 1)) == 0 && below + coarse[median >> shift] <= rank)
+                {
+                    // skip an entire block
+                    below += coarse[median >> shift];
+                    median += blockSize;
+                }
+                else
+                {
+                    below += fine[median];
+                    median++;
+                }
+            }
+        }
+        
+        void filterLine(int z, int y, Object outXY)
+        {
+            minY = Math.max(y - radiusY, 0);
+            maxY = Math.min(y + radiusY + 1, height);
+            minZ = Math.max(z - radiusZ, 0);
+            maxZ = Math.min(z + radiusZ + 1, depth);
+            
+            final int columnSize = (maxY - minY) * (maxZ - minZ);
+            
+            // fill the histogram with the neighborhood of the first pixel
+            
+            median = 0;
+            below = 0;
+            
+            int maxX = Math.min(radiusX + 1, width);
+            for (int x = 0; x < maxX; x++)
+                updateColumn(x, 1);
+            
+            for (int x = 0, outOffset = y * width; x < width; x++, outOffset++)
+            {
+                int minX = Math.max(x - radiusX, 0);
+                
+                seek(Median.rank((maxX - minX) * columnSize));
+                
+                if (isByte)
+                {
+                    ((byte[]) outXY)[outOffset] = (byte) (median - offset);
+                }
+                else
+                {
+                    ((short[]) outXY)[outOffset] = (short) (median - offset);
+                }
+                
+                // slide the window
+                
+                if (maxX < width) updateColumn(maxX++, 1);
+                
+                if (x - radiusX >= 0) updateColumn(x - radiusX, -1);
+            }
+            
+            // empty the histogram for the next line
+            
+            for (int x = Math.max(width - radiusX, 0); x < width; x++)
+                updateColumn(x, -1);
+        }
+    }
+    
+    /**
+     * Column histograms of a line of 8-bit data, and the neighborhood histogram sliding along it
+     * (Perreault and H&eacute;bert's algorithm)
+     */
+    private static class ColumnWindow
+    {
+        final Object[] in_Z_XY;
+        
+        final int      width, height, depth;
+        
+        final int      radiusX, radiusY, radiusZ;
+        
+        /**
+         * The offset added to signed data to obtain a positive histogram index
+         */
+        final int      offset;
+        
+        /**
+         * Fine and coarse histograms of each column, stored one after the other. Columns are padded
+         * with radiusX empty histograms on both sides, such that the neighborhood always spans
+         * 2*radiusX+1 columns (column x of the image is stored at x + radiusX)
+         */
+        final int[]    columnFine, columnCoarse;
+        
+        /**
+         * Fine and coarse histograms of the neighborhood
+         */
+        final int[]    fine   = new int[256], coarse = new int[16];
+        
+        /**
+         * The pixel for which each block of fine bins of the neighborhood was last brought up to
+         * date
+         */
+        final int[]    updated = new int[16];
+        
+        int            minY, maxY, minZ, maxZ;
+        
+        ColumnWindow(Object[] in_Z_XY, DataType type, int width, int height, int radiusX, int radiusY, int radiusZ)
+        {
+            this.in_Z_XY = in_Z_XY;
+            this.width = width;
+            this.height = height;
+            this.depth = in_Z_XY.length;
+            this.radiusX = radiusX;
+            this.radiusY = radiusY;
+            this.radiusZ = radiusZ;
+            
+            offset = type == DataType.BYTE ? 128 : 0;
+            
+            columnFine = new int[(width + 2 * radiusX) * 256];
+            columnCoarse = new int[(width + 2 * radiusX) * 16];
+        }
+        
+        /**
+         * Fills the column histograms with the neighborhood of the given line
+         */
+        void fill(int z, int y)
+        {
+            minZ = Math.max(z - radiusZ, 0);
+            maxZ = Math.min(z + radiusZ + 1, depth);
+            minY = Math.max(y - radiusY, 0);
+            maxY = Math.min(y + radiusY + 1, height);
+            
+            Arrays.fill(columnFine, 0);
+            Arrays.fill(columnCoarse, 0);
+            
+            for (int row = minY; row < maxY; row++)
+                updateRow(row, 1);
+        }
+        
+        /**
+         * Moves the column histograms from the neighborhood of the previous line to that of the
+         * given line
+         */
+        void moveDown(int y)
+        {
+            if (y - radiusY - 1 >= 0)
+            {
+                updateRow(y - radiusY - 1, -1);
+                minY++;
+            }
+            
+            if (y + radiusY < height)
+            {
+                updateRow(y + radiusY, 1);
+                maxY++;
+            }
+        }
+        
+        /**
+         * Adds (or removes) a row of the neighborhood (in all slices) to the column histograms
+         */
+        private void updateRow(int y, int increment)
+        {
+            for (int z = minZ; z < maxZ; z++)
+            {
+                byte[] slice = (byte[]) in_Z_XY[z];
+                
+                for (int x = 0, xy = y * width, column = radiusX; x < width; x++, xy++, column++)
+                {
+                    int value = (slice[xy] + offset) & 0xff;
+                    columnFine[(column << 8) + value] += increment;
+                    columnCoarse[(column << 4) + (value >> 4)] += increment;
+                }
+            }
+        }
+        
+        /**
+         * Brings a block of fine bins of the neighborhood up to date for the given pixel
+         */
+        private void updateFine(int block, int x)
+        {
+            final int first = block << 4;
+            final int last = updated[block];
+            
+            if (last < 0 || 2 * (x - last) > 2 * radiusX + 1)
+            {
+                // recompute the block from the columns of the neighborhood (padded column x to
+                // x + 2 * radiusX)
+                Arrays.fill(fine, first, first + 16, 0);
+                
+                for (int column = x; column <= x + 2 * radiusX; column++)
+                    for (int i = 0, j = (column << 8) + first; i < 16; i++, j++)
+                        fine[first + i] += columnFine[j];
+            }
+            else
+            {
+                // slide the block from the last pixel where it was up to date
+                for (int p = last + 1; p <= x; p++)
+                {
+                    int enter = ((p + 2 * radiusX) << 8) + first;
+                    int leave = ((p - 1) << 8) + first;
+                    
+                    for (int i = 0; i < 16; i++)
+                        fine[first + i] += columnFine[enter + i] - columnFine[leave + i];
+                }
+            }
+            
+            updated[block] = x;
+        }
+        
+        void filterLine(int y, Object outXY)
+        {
+            final byte[] out = (byte[]) outXY;
+            final int columnSize = (maxY - minY) * (maxZ - minZ);
+            
+            // coarse histogram of the neighborhood of the first pixel
+            
+            Arrays.fill(coarse, 0);
+            Arrays.fill(updated, -1);
+            
+            for (int column = 0; column <= 2 * radiusX; column++)
+                for (int i = 0, j = column << 4; i < 16; i++, j++)
+                    coarse[i] += columnCoarse[j];
+            
+            for (int x = 0, outOffset = y * width; x < width; x++, outOffset++)
+            {
+                int n = (Math.min(x + radiusX, width - 1) - Math.max(x - radiusX, 0) + 1) * columnSize;
+                int rank = Median.rank(n);
+                
+                // find the coarse bin, then the fine bin of the median
+                
+                int block = 0, below = 0;
+                
+                while (below + coarse[block] <= rank)
+                    below += coarse[block++];
+                
+                updateFine(block, x);
+                
+                int median = block << 4;
+                
+                while (below + fine[median] <= rank)
+                    below += fine[median++];
+                
+                out[outOffset] = (byte) (median - offset);
+                
+                // slide the coarse histogram (padded column x + 2 * radiusX + 1 enters, and
+                // padded column x leaves)
+                
+                if (x + 1 < width)
+                {
+                    int enter = (x + 2 * radiusX + 1) << 4;
+                    int leave = x << 4;
+                    
+                    for (int i = 0; i < 16; i++)
+                        coarse[i] += columnCoarse[enter + i] - columnCoarse[leave + i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package plugins.adufour.filtering;
+
+/**
+ * Incremental neighborhood of a {@link SelectionFilter}. When a filter provides such a neighborhood
+ * (see {@link SelectionFilter#createIncrementalNeighborhood(int)}), the neighborhood of each pixel
+ * is not gathered entirely. Instead, the filtering process slides it along each image line and
+ * only reports the values entering and leaving it.
+ * 
+ * @see SortedWindow
+ */
+public interface IncrementalNeighborhood
+{
+    /**
+     * Adds a value to the neighborhood
+     * 
+     * @param value
+     *            the value entering the neighborhood
+     */
+    void enter(double value);
+    
+    /**
+     * Removes a value from the neighborhood
+     * 
+     * @param value
+     *            the value leaving the neighborhood (this value is guaranteed to have entered the
+     *            neighborhood before)
+     */
+    void leave(double value);
+    
+    /**
+     * Computes the filtered value of the current pixel from the current state of the neighborhood
+     * 
+     * @param currentValue
+     *            the value of the current pixel
+     * @return the filtered value
+     */
+    double evaluate(double currentValue);
+}
@@ -0,0 +1,377 @@
+package plugins.adufour.filtering;
+
+import icy.type.DataType;
+
+/**
+ * Summed-area tables (integral images) of the values and squared values of a band of lines,
+ * accumulated over a window of consecutive slices of a stack, giving the sum, mean and variance of
+ * any axis-aligned box of the window in constant time. The window slides along Z (see
+ * {@link #slide(int)}): the table of each slice is built when the slice enters the window, added
+ * to the tables of the window, and subtracted when the slice leaves it. Thus only the tables of
+ * the 2*radiusZ+1 slices of the window are kept in memory, instead of the integral of the whole
+ * stack.<br>
+ * To limit cancellation errors, values are shifted by the (rounded) mean of the band before being
+ * accumulated. Integer-valued data is accumulated in <code>long</code> tables, such that all box
+ * queries are exact, as long as the sum of the squared (shifted) values of the window stays below
+ * 2<sup>61</sup>. Other data is accumulated in <code>double</code> tables, whose box queries suffer
+ * from cancellation errors when the box is small w.r.t. the window.
+ */
+public class IntegralVolume
+{
+    private final Object[]   in_Z_XY;
+    
+    private final DataType   type;
+    
+    private final int        width;
+    
+    private final int        depth;
+    
+    /**
+     * The lines of the band (the first line, and the line after the last line)
+     */
+    private final int        minY, maxY;
+    
+    private final int        radiusZ;
+    
+    /**
+     * Line length of the tables (one extra column of zeros is stored on the left, and one extra
+     * line of zeros on top)
+     */
+    private final int        stride;
+    
+    /**
+     * The value subtracted from the data before accumulation
+     */
+    private final double     shift;
+    
+    /**
+     * Integral of the (shifted) values and squared values of each slice of the window, by slice
+     * modulo the size of the ring (null if the data is accumulated exactly)
+     */
+    private final double[][] sliceSum, sliceSum2;
+    
+    /**
+     * Integral of the (shifted) values and squared values of the window (null if the data is
+     * accumulated exactly)
+     */
+    private final double[]   sum, sum2;
+    
+    /**
+     * Same as {@link #sliceSum} and {@link #sliceSum2}, for integer data accumulated exactly (null
+     * otherwise)
+     */
+    private final long[][]   exactSliceSum, exactSliceSum2;
+    
+    /**
+     * Same as {@link #sum} and {@link #sum2}, for integer data accumulated exactly (null otherwise)
+     */
+    private final long[]     exactSum, exactSum2;
+    
+    private final double[]   line;
+    
+    /**
+     * The slices of the window (the window is empty if minZ > maxZ)
+     */
+    private int              minZ = 0, maxZ = -1;
+    
+    /**
+     * Creates the tables of a band of lines of the given stack. The window is initially empty (see
+     * {@link #slide(int)})
+     * 
+     * @param in_Z_XY
+     *            the input data, given as a [Z (slice)][XY (1D offset)] array of the specified type
+     * @param type
+     *            the data type of the input array
+     * @param width
+     *            the image width
+     * @param minY
+     *            the first line of the band
+     * @param maxY
+     *            the line after the last line of the band
+     * @param radiusZ
+     *            the radius of the window of slices
+     */
+    public IntegralVolume(Object[] in_Z_XY, DataType type, int width, int minY, int maxY, int radiusZ)
+    {
+        this.in_Z_XY = in_Z_XY;
+        this.type = type;
+        this.width = width;
+        this.depth = in_Z_XY.length;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.radiusZ = radiusZ;
+        this.stride = width + 1;
+        this.line = new double[width];
+        
+        final int ringSize = Math.min(2 * radiusZ + 1, depth);
+        final int tableSize = stride * (maxY - minY + 1);
+        
+        double mean = 0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        boolean integer = true;
+        
+        for (int z = 0; z < depth; z++)
+            for (int y = minY; y < maxY; y++)
+            {
+                SelectionFilter.gather(in_Z_XY[z], y * width, line, 0, width, type);
+                
+                double lineSum = 0;
+                for (double d : line)
+                {
+                    lineSum += d;
+                    if (d < min) min = d;
+                    if (d > max) max = d;
+                    if (integer && d != Math.rint(d)) integer = false;
+                }
+                mean += lineSum;
+            }
+        
+        shift = Math.rint(mean / ((double) width * (maxY - minY) * depth));
+        
+        // integer data is accumulated exactly if the sum of squares of a window cannot overflow
+        // (the tables only hold partial sums of this total), with a margin for the re-centring of
+        // the variance (see getVariance())
+        final double maxDeviation = Math.max(max - shift, shift - min);
+        final double nbVoxels = (double) width * (maxY - minY) * ringSize;
+        final boolean exact = integer && 4 * maxDeviation * maxDeviation * nbVoxels < Long.MAX_VALUE;
+        
+        sliceSum = exact ? null : new double[ringSize][tableSize];
+        sliceSum2 = exact ? null : new double[ringSize][tableSize];
+        sum = exact ? null : new double[tableSize];
+        sum2 = exact ? null : new double[tableSize];
+        exactSliceSum = exact ? new long[ringSize][tableSize] : null;
+        exactSliceSum2 = exact ? new long[ringSize][tableSize] : null;
+        exactSum = exact ? new long[tableSize] : null;
+        exactSum2 = exact ? new long[tableSize] : null;
+    }
+    
+    /**
+     * Moves the window of slices to [z - radiusZ, z + radiusZ] (clipped to the stack bounds). The
+     * slice leaving the window frees its slot of the ring for the entering one.
+     * 
+     * @param z
+     *            the central slice of the window. This method must be called for each slice in
+     *            turn, starting from slice 0
+     */
+    public void slide(int z)
+    {
+        int newMinZ = Math.max(z - radiusZ, 0);
+        int newMaxZ = Math.min(z + radiusZ, depth - 1);
+        
+        for (; minZ < newMinZ; minZ++)
+            accumulate(minZ, -1);
+        
+        for (; maxZ < newMaxZ; maxZ++)
+        {
+            integrate(maxZ + 1);
+            accumulate(maxZ + 1, 1);
+        }
+    }
+    
+    /**
+     * Builds the 2D integral of the band in the given slice, in its slot of the ring
+     */
+    private void integrate(int slice)
+    {
+        final Object in_XY = in_Z_XY[slice];
+        
+        if (exactSum != null)
+        {
+            final long exactShift = (long) shift;
+            
+            long[] s = exactSliceSum[slice % exactSliceSum.length];
+            long[] s2 = exactSliceSum2[slice % exactSliceSum2.length];
+            
+            for (int y = minY; y < maxY; y++)
+            {
+                SelectionFilter.gather(in_XY, y * width, line, 0, width, type);
+                
+                long lineSum = 0, lineSum2 = 0;
+                
+                int above = (y - minY) * stride + 1;
+                int outXY = above + stride;
+                
+                for (int x = 0; x < width; x++, outXY++, above++)
+                {
+                    long value = (long) line[x] - exactShift;
+                    lineSum += value;
+                    lineSum2 += value * value;
+                    s[outXY] = s[above] + lineSum;
+                    s2[outXY] = s2[above] + lineSum2;
+                }
+            }
+            
+            return;
+        }
+        
+        double[] s = sliceSum[slice % sliceSum.length];
+        double[] s2 = sliceSum2[slice % sliceSum2.length];
+        
+        for (int y = minY; y < maxY; y++)
+        {
+            SelectionFilter.gather(in_XY, y * width, line, 0, width, type);
+            
+            double lineSum = 0, lineSum2 = 0;
+            
+            int above = (y - minY) * stride + 1;
+            int outXY = above + stride;
+            
+            for (int x = 0; x < width; x++, outXY++, above++)
+            {
+                double value = line[x] - shift;
+                lineSum += value;
+                lineSum2 += value * value;
+                s[outXY] = s[above] + lineSum;
+                s2[outXY] = s2[above] + lineSum2;
+            }
+        }
+    }
+    
+    /**
+     * Adds (or subtracts) the 2D integral of the given slice to the tables of the window
+     * 
+     * @param sign
+     *            1 to add the slice, or -1 to subtract it
+     */
+    private void accumulate(int slice, int sign)
+    {
+        if (exactSum != null)
+        {
+            long[] s = exactSliceSum[slice % exactSliceSum.length];
+            long[] s2 = exactSliceSum2[slice % exactSliceSum2.length];
+            
+            for (int i = 0; i < s.length; i++)
+            {
+                exactSum[i] += sign * s[i];
+                exactSum2[i] += sign * s2[i];
+            }
+            
+            return;
+        }
+        
+        double[] s = sliceSum[slice % sliceSum.length];
+        double[] s2 = sliceSum2[slice % sliceSum2.length];
+        
+        for (int i = 0; i < s.length; i++)
+        {
+            sum[i] += sign * s[i];
+            sum2[i] += sign * s2[i];
+        }
+    }
+    
+    /**
+     * Accumulates the given table over the specified box. Bounds are assumed to be already clipped,
+     * and the lines relative to the band
+     */
+    private double box(double[] table, int minX, int minY, int maxX, int maxY)
+    {
+        return table[maxY * stride + maxX] - table[minY * stride + maxX] - table[maxY * stride + minX] + table[minY * stride + minX];
+    }
+    
+    /**
+     * Same as {@link #box(double[], int, int, int, int)}, on an exact table
+     */
+    private long box(long[] table, int minX, int minY, int maxX, int maxY)
+    {
+        return table[maxY * stride + maxX] - table[minY * stride + maxX] - table[maxY * stride + minX] + table[minY * stride + minX];
+    }
+    
+    /**
+     * Returns the number of elements in the specified box of the window, after clipping to the
+     * band. Box bounds are given as minimum (inclusive) and maximum (exclusive) coordinates in each
+     * dimension.
+     * 
+     * @return the number of elements in the specified box
+     */
+    public int getCount(int minX, int minY, int maxX, int maxY)
+    {
+        int sizeX = Math.min(maxX, width) - Math.max(minX, 0);
+        int sizeY = Math.min(maxY, this.maxY) - Math.max(minY, this.minY);
+        int sizeZ = maxZ - minZ + 1;
+        
+        if (sizeX <= 0 || sizeY <= 0 || sizeZ <= 0) return 0;
+        
+        return sizeX * sizeY * sizeZ;
+    }
+    
+    /**
+     * Returns the sum of the values in the specified box of the window, after clipping to the band.
+     * Box bounds are given as minimum (inclusive) and maximum (exclusive) coordinates in each
+     * dimension.
+     * 
+     * @return the sum of the values in the specified box
+     */
+    public double getSum(int minX, int minY, int maxX, int maxY)
+    {
+        int n = getCount(minX, minY, maxX, maxY);
+        
+        if (n == 0) return 0;
+        
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, this.minY) - this.minY;
+        maxX = Math.min(maxX, width);
+        maxY = Math.min(maxY, this.maxY) - this.minY;
+        
+        if (exactSum != null) return box(exactSum, minX, minY, maxX, maxY) + n * shift;
+        
+        return box(sum, minX, minY, maxX, maxY) + n * shift;
+    }
+    
+    /**
+     * Returns the mean of the values in the specified box of the window, after clipping to the
+     * band. Box bounds are given as minimum (inclusive) and maximum (exclusive) coordinates in each
+     * dimension.
+     * 
+     * @return the mean of the values in the specified box (or NaN if the box is empty)
+     */
+    public double getMean(int minX, int minY, int maxX, int maxY)
+    {
+        int n = getCount(minX, minY, maxX, maxY);
+        
+        if (n == 0) return Double.NaN;
+        
+        return getSum(minX, minY, maxX, maxY) / n;
+    }
+    
+    /**
+     * Returns the (population) variance of the values in the specified box of the window, after
+     * clipping to the band. Box bounds are given as minimum (inclusive) and maximum (exclusive)
+     * coordinates in each dimension.
+     * 
+     * @return the variance of the values in the specified box (or NaN if the box is empty)
+     */
+    public double getVariance(int minX, int minY, int maxX, int maxY)
+    {
+        int n = getCount(minX, minY, maxX, maxY);
+        
+        if (n == 0) return Double.NaN;
+        
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, this.minY) - this.minY;
+        maxX = Math.min(maxX, width);
+        maxY = Math.min(maxY, this.maxY) - this.minY;
+        
+        if (exactSum != null)
+        {
+            long s = box(exactSum, minX, minY, maxX, maxY);
+            long s2 = box(exactSum2, minX, minY, maxX, maxY);
+            
+            // re-centre the sums on the (truncated) box mean q = s / n, such that the sum of
+            // squared deviations S = s2 - 2 q s + n q^2 is computed exactly, and only the
+            // remainder r = s - n q (|r| < n) is corrected in floating point
+            long q = s / n;
+            long r = s - q * n;
+            long centred = s2 - 2 * q * s + n * q * q;
+            
+            return Math.max(0, (centred - (double) r * r / n) / n);
+        }
+        
+        // the variance is shift-invariant: use the shifted sums directly
+        double s = box(sum, minX, minY, maxX, maxY);
+        double s2 = box(sum2, minX, minY, maxX, maxY);
+        
+        double variance = (s2 - s * s / n) / n;
+        
+        // rounding errors may yield slightly negative values on constant areas
+        return variance < 0 ? 0 : variance;
+    }
+}
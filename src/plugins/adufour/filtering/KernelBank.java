@@ -0,0 +1,55 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+
+/**
+ * Banks of 2D kernels (e.g. compass operators), convolved in a single pass by
+ * {@link Convolution#convolveBank(Sequence, Sequence[], boolean, Output)}
+ */
+public enum KernelBank
+{
+    /** The 8 oriented Kirsch kernels (from north to north-west, clockwise) */
+    KIRSCH(Kernels2D.KIRSCH_NORTH, Kernels2D.KIRSCH_NORTHEAST, Kernels2D.KIRSCH_EAST, Kernels2D.KIRSCH_SOUTHEAST, Kernels2D.KIRSCH_SOUTH, Kernels2D.KIRSCH_SOUTHWEST,
+            Kernels2D.KIRSCH_WEST, Kernels2D.KIRSCH_NORTHWEST),
+    
+    /** The horizontal and vertical Sobel kernels */
+    SOBEL(Kernels2D.SOBEL_X, Kernels2D.SOBEL_Y),
+    
+    /** The horizontal and vertical Prewitt kernels */
+    PREWITT(Kernels2D.PREWITT_X, Kernels2D.PREWITT_Y);
+    
+    /**
+     * Output of a kernel bank convolution
+     */
+    public enum Output
+    {
+        /** The response to each kernel, as a separate channel */
+        ALL,
+        
+        /** The maximum response over all kernels */
+        MAX,
+        
+        /** The index (in the bank) of the kernel with the maximum response */
+        ARGMAX
+    }
+    
+    private final Kernels2D[] kernels;
+    
+    KernelBank(Kernels2D... kernels)
+    {
+        this.kernels = kernels;
+    }
+    
+    /**
+     * @return the kernels of the bank, as sequences
+     */
+    public Sequence[] toSequences()
+    {
+        Sequence[] sequences = new Sequence[kernels.length];
+        
+        for (int k = 0; k < kernels.length; k++)
+            sequences[k] = kernels[k].toSequence();
+        
+        return sequences;
+    }
+}
@@ -1,5 +1,11 @@
 package plugins.adufour.filtering;
 
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
 public class LocalMax extends SelectionFilter
 {
     @Override
@@ -16,4 +22,129 @@ public class LocalMax extends SelectionFilter
         
         return defaultValue;
     }
+    
+    /**
+     * Finds the local maxima of the given sequence, and returns them as a list of coordinates
+     * instead of a binary image. A pixel is a local maximum under the same conditions as in
+     * {@link #filterSquare(Sequence, int...)}, i.e. no value of its neighborhood is greater than
+     * its own value, and at least one is lower. Instead of gathering the neighborhood of each
+     * pixel, the sequence is compared to its (separable) maximum and minimum filtered copies.
+     * 
+     * @param sequence
+     *            the sequence to process
+     * @param threshold
+     *            the minimum intensity of a peak (use {@link Double#NEGATIVE_INFINITY} to keep all
+     *            peaks)
+     * @param radius
+     *            the neighborhood radius in each dimension, with the same convention as
+     *            {@link #filterSquare(Sequence, int...)}
+     * @return the list of peaks, sorted by T, C, Z, Y and X
+     */
+    public PeakList findPeaks(Sequence sequence, double threshold, int... radius)
+    {
+        if (radius.length == 0) throw new IllegalArgumentException("Provide at least one filter radius");
+        
+        final int kWidth = radius[0];
+        final int kHeight = radius.length == 1 ? kWidth : radius[1];
+        final int kDepth = radius.length == 1 ? kWidth : radius.length == 2 ? 0 : radius[2];
+        
+        stopFlag.setValue(false);
+        
+        final int width = sequence.getSizeX();
+        final int height = sequence.getSizeY();
+        final int depth = sequence.getSizeZ();
+        final DataType type = sequence.getDataType_();
+        
+        PeakList peaks = new PeakList(1024);
+        
+        // candidate slices, offsets and values in the current stack (the lists are reused)
+        int[] candidateZ = new int[1024];
+        int[] candidateXY = new int[1024];
+        double[] candidateValues = new double[1024];
+        
+        // working stacks (reused for all channels and frames)
+        final double[][] work = new double[depth][width * height];
+        final double[][] filtered = new double[depth][width * height];
+        
+        final double[] line = new double[width];
+        
+        try
+        {
+            for (int t = 0; t < sequence.getSizeT(); t++)
+                for (int c = 0; c < sequence.getSizeC(); c++)
+                {
+                    Object[] in_Z_XY = new Object[depth];
+                    for (int z = 0; z < depth; z++)
+                        in_Z_XY[z] = sequence.getDataXY(t, z, c);
+                    
+                    // candidates: pixels equal to the maximum of their neighborhood
+                    
+                    for (int z = 0; z < depth; z++)
+                        gather(in_Z_XY[z], 0, work[z], 0, width * height, type);
+                    
+                    SeparableMinMax.max(service, work, filtered, width, height, kWidth, kHeight, kDepth);
+                    
+                    int nbCandidates = 0;
+                    
+                    for (int z = 0; z < depth; z++)
+                    {
+                        double[] max = filtered[z];
+                        
+                        for (int y = 0, lineOffset = 0; y < height; y++, lineOffset += width)
+                        {
+                            gather(in_Z_XY[z], lineOffset, line, 0, width, type);
+                            
+                            for (int x = 0; x < width; x++)
+                            {
+                                double value = line[x];
+                                
+                                if (value < threshold || value != max[lineOffset + x]) continue;
+                                
+                                if (nbCandidates == candidateZ.length)
+                                {
+                                    candidateZ = Arrays.copyOf(candidateZ, nbCandidates * 2);
+                                    candidateXY = Arrays.copyOf(candidateXY, nbCandidates * 2);
+                                    candidateValues = Arrays.copyOf(candidateValues, nbCandidates * 2);
+                                }
+                                
+                                candidateZ[nbCandidates] = z;
+                                candidateXY[nbCandidates] = lineOffset + x;
+                                candidateValues[nbCandidates] = value;
+                                nbCandidates++;
+                            }
+                        }
+                    }
+                    
+                    if (nbCandidates == 0) continue;
+                    
+                    // peaks: candidates strictly greater than the minimum of their neighborhood
+                    
+                    for (int z = 0; z < depth; z++)
+                        gather(in_Z_XY[z], 0, work[z], 0, width * height, type);
+                    
+                    SeparableMinMax.min(service, work, filtered, width, height, kWidth, kHeight, kDepth);
+                    
+                    for (int i = 0; i < nbCandidates; i++)
+                    {
+                        int z = candidateZ[i];
+                        int xy = candidateXY[i];
+                        double value = candidateValues[i];
+                        
+                        if (value > filtered[z][xy]) peaks.add(xy % width, xy / width, z, t, c, value);
+                    }
+                    
+                    if (stopFlag.getValue()) return peaks;
+                }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        
+        return peaks;
+    }
 }
@@ -0,0 +1,109 @@
+package plugins.adufour.filtering;
+
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Selection filter based on the first two moments (sum and variance) of the neighborhood. These
+ * moments are read in constant time from an {@link IntegralVolume}, regardless of the filter
+ * radius. Box neighborhoods are filtered by bands of lines (see
+ * {@link SelectionFilter#getBandHeight(int, int)}), each band sweeping all slices with the window
+ * of its integral volume.
+ */
+public abstract class LocalStatisticsFilter extends SelectionFilter
+{
+    /**
+     * Process the current image pixel using the statistics of its neighborhood
+     * 
+     * @param currentValue
+     *            the value of the current pixel
+     * @param sum
+     *            the sum of the neighborhood values (inclusive)
+     * @param variance
+     *            the (population) variance of the neighborhood values
+     * @param neighborhoodSize
+     *            the number of elements in the neighborhood
+     * @return the filtered value
+     */
+    abstract double process(double currentValue, double sum, double variance, int neighborhoodSize);
+    
+    @Override
+    boolean filterStack(final Object[] in_Z_XY, final Object[] out_Z_XY, final DataType type, final int width, final int height, final int radiusX, final int radiusY,
+            final int radiusZ, TaskPipeline pipeline, final TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        final int bandHeight = getBandHeight(height, radiusY);
+        
+        for (int y = 0; y < height; y += bandHeight)
+        {
+            final int minY = y;
+            final int maxY = Math.min(y + bandHeight, height);
+            
+            pipeline.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    filterBand(in_Z_XY, out_Z_XY, type, width, height, minY, maxY, radiusX, radiusY, radiusZ, monitor);
+                }
+            });
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Filters a band of lines through all the slices of the stack, from the integral of the band
+     * and its halo along Y over a sliding window of slices (see {@link IntegralVolume})
+     * 
+     * @param minY
+     *            the first line of the band
+     * @param maxY
+     *            the line after the last line of the band
+     * @param monitor
+     *            the monitor to check for cancellation and to report the filtered lines to (or
+     *            null)
+     */
+    void filterBand(Object[] in_Z_XY, Object[] out_Z_XY, DataType type, int width, int height, int minY, int maxY, int radiusX, int radiusY, int radiusZ,
+            TaskMonitor monitor)
+    {
+        final int depth = in_Z_XY.length;
+        final boolean signed = type.isSigned();
+        
+        final IntegralVolume volume = new IntegralVolume(in_Z_XY, type, width, Math.max(minY - radiusY, 0), Math.min(maxY + radiusY, height), radiusZ);
+        
+        final double[] line = new double[width];
+        
+        for (int z = 0; z < depth; z++)
+        {
+            if (monitor != null && monitor.isCancelled()) return;
+            
+            volume.slide(z);
+            
+            for (int y = minY; y < maxY; y++)
+            {
+                final int minYinclusive = y - radiusY;
+                final int maxYexclusive = y + radiusY + 1;
+                
+                gather(in_Z_XY[z], y * width, line, 0, width, type);
+                
+                for (int x = 0; x < width; x++)
+                {
+                    int minXinclusive = x - radiusX;
+                    int maxXexclusive = x + radiusX + 1;
+                    
+                    int n = volume.getCount(minXinclusive, minYinclusive, maxXexclusive, maxYexclusive);
+                    double sum = volume.getSum(minXinclusive, minYinclusive, maxXexclusive, maxYexclusive);
+                    double var = volume.getVariance(minXinclusive, minYinclusive, maxXexclusive, maxYexclusive);
+                    
+                    line[x] = process(line[x], sum, var, n);
+                }
+                
+                Array1DUtil.doubleArrayToSafeArray(line, 0, out_Z_XY[z], y * width, width, signed);
+            }
+            
+            if (monitor != null) monitor.add(maxY - minY);
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package plugins.adufour.filtering;
 
+import icy.type.DataType;
+
+import java.util.concurrent.ExecutionException;
+
 public class Max extends SelectionFilter
 {
     @Override
@@ -13,4 +17,13 @@ public class Max extends SelectionFilter
         }
         return max;
     }
+    
+    @Override
+    boolean filterStack(Object[] in_Z_XY, Object[] out_Z_XY, DataType type, int width, int height, int radiusX, int radiusY, int radiusZ, TaskPipeline pipeline,
+            TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        SeparableMinMax.submit(pipeline, in_Z_XY, out_Z_XY, type, width, height, radiusX, radiusY, radiusZ, false, monitor);
+        
+        return true;
+    }
 }
@@ -1,5 +1,9 @@
 package plugins.adufour.filtering;
 
+import icy.type.DataType;
+
+import java.util.concurrent.ExecutionException;
+
 public class Mean extends SelectionFilter
 {
     @Override
@@ -10,4 +14,48 @@ public class Mean extends SelectionFilter
             sum += neighborhood[i];
         return sum / neighborhoodSize;
     }
+    
+    /**
+     * Keeps the running sum of the neighborhood, such that non-box neighborhoods (e.g. ellipsoids,
+     * see {@link StructuringElement}) cost two updates per run and pixel instead of a full sum
+     */
+    @Override
+    public IncrementalNeighborhood createIncrementalNeighborhood(int capacity)
+    {
+        return new IncrementalNeighborhood()
+        {
+            double sum = 0;
+            
+            int    size = 0;
+            
+            @Override
+            public void enter(double value)
+            {
+                sum += value;
+                size++;
+            }
+            
+            @Override
+            public void leave(double value)
+            {
+                // restart from an exact zero when the neighborhood is emptied (end of line)
+                sum = --size == 0 ? 0 : sum - value;
+            }
+            
+            @Override
+            public double evaluate(double currentValue)
+            {
+                return sum / size;
+            }
+        };
+    }
+    
+    @Override
+    boolean filterStack(Object[] in_Z_XY, Object[] out_Z_XY, DataType type, int width, int height, int radiusX, int radiusY, int radiusZ, TaskPipeline pipeline,
+            TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        SlidingMean.submit(pipeline, in_Z_XY, out_Z_XY, type, width, height, radiusX, radiusY, radiusZ, monitor);
+        
+        return true;
+    }
 }
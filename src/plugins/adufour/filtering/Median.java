@@ -1,7 +1,42 @@
 package plugins.adufour.filtering;
 
+import icy.type.DataType;
+
+import java.util.concurrent.ExecutionException;
+
 public class Median extends SelectionFilter
 {
+    /**
+     * @param neighborhoodSize
+     *            the number of elements in the neighborhood
+     * @return the (0-based) rank of the median element in the sorted neighborhood, as returned by
+     *         {@link #process(double, double[], int)}
+     */
+    static int rank(int neighborhoodSize)
+    {
+        return neighborhoodSize < 2 ? 0 : (neighborhoodSize >> 1) - 1;
+    }
+    
+    /**
+     * Uses the {@link HistogramMedian histogram-based} median on 8- and 16-bit data, and a
+     * {@link SlidingRank sliding sorted window} on other data types
+     */
+    @Override
+    boolean filterStack(Object[] in_Z_XY, Object[] out_Z_XY, DataType type, int width, int height, int radiusX, int radiusY, int radiusZ, TaskPipeline pipeline,
+            TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        if (HistogramMedian.isSupported(type))
+        {
+            HistogramMedian.submit(pipeline, in_Z_XY, out_Z_XY, type, width, height, radiusX, radiusY, radiusZ, monitor);
+        }
+        else
+        {
+            SlidingRank.submit(pipeline, in_Z_XY, out_Z_XY, type, width, height, radiusX, radiusY, radiusZ, -1, monitor);
+        }
+        
+        return true;
+    }
+    
     /**
      * (routine ported from 'Numerical Recipes in C 2nd ed.')<br>
      * Computes the k-th smallest value in the input array and rearranges the array such that the
@@ -0,0 +1,29 @@
+package plugins.adufour.filtering;
+
+import icy.type.DataType;
+
+import java.util.concurrent.ExecutionException;
+
+public class Min extends SelectionFilter
+{
+    @Override
+    double process(double currentValue, double[] neighborhood, int neighborhoodSize)
+    {
+        double min = neighborhood[0];
+        for (int i = 1; i < neighborhoodSize; i++)
+        {
+            double d = neighborhood[i];
+            if (d < min) min = d;
+        }
+        return min;
+    }
+    
+    @Override
+    boolean filterStack(Object[] in_Z_XY, Object[] out_Z_XY, DataType type, int width, int height, int radiusX, int radiusY, int radiusZ, TaskPipeline pipeline,
+            TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        SeparableMinMax.submit(pipeline, in_Z_XY, out_Z_XY, type, width, height, radiusX, radiusY, radiusZ, true, monitor);
+        
+        return true;
+    }
+}
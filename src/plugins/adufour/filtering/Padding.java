@@ -0,0 +1,356 @@
+package plugins.adufour.filtering;
+
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * Copies image data into working buffers surrounded by a halo (typically of the size of a kernel
+ * radius), already filled according to the boundary condition. Filters reading such buffers need
+ * no boundary test in their inner loops.<br>
+ * All engines use the same boundary conditions:
+ * <ul>
+ * <li>zero: data outside the image is zero</li>
+ * <li>mirror: data is reflected about the first and last pixels, which are not repeated (e.g.
+ * pixel -1 is a copy of pixel 1, and pixel N a copy of pixel N-2)</li>
+ * </ul>
+ * Working buffers are double, float or int arrays (the working type is given as the matching
+ * {@link DataType}), and stacks of working buffers are typed accordingly (e.g. a double[][] array
+ * for double buffers).
+ */
+final class Padding
+{
+    private Padding()
+    {
+    }
+    
+    /**
+     * @param index
+     *            an index, possibly outside the [0, size) range
+     * @param size
+     *            the size of the dimension
+     * @return the index inside the [0, size) range given by the mirror boundary condition (the
+     *         reflection is repeated if the index is further than one size away from the data)
+     */
+    static int mirror(int index, int size)
+    {
+        if (index >= 0 && index < size) return index;
+        
+        if (size == 1) return 0;
+        
+        final int period = 2 * size - 2;
+        
+        index = Math.abs(index) % period;
+        
+        return index < size ? index : period - index;
+    }
+    
+    /**
+     * Copies a line of data into the given buffer, and fills a halo of the specified radius on
+     * each side of the line
+     * 
+     * @param in
+     *            the input array
+     * @param offset
+     *            the offset of the first value of the line in the input array
+     * @param type
+     *            the data type of the input array
+     * @param width
+     *            the length of the line
+     * @param out
+     *            the output buffer (a double, float or int array with room for
+     *            <code>width + 2 * radius</code> values from <code>outOffset</code>)
+     * @param outOffset
+     *            the offset of the first halo value in the output buffer
+     * @param radius
+     *            the radius of the halo
+     * @param zeroEdges
+     *            true for a zero halo, false to mirror the line
+     */
+    static void padLine(Object in, int offset, DataType type, int width, Object out, int outOffset, int radius, boolean zeroEdges)
+    {
+        final int first = outOffset + radius;
+        
+        SelectionFilter.gather(in, offset, out, first, width, type);
+        
+        if (zeroEdges)
+        {
+            clear(out, outOffset, first);
+            clear(out, first + width, first + width + radius);
+            return;
+        }
+        
+        for (int x = 1; x <= radius; x++)
+        {
+            System.arraycopy(out, first + mirror(-x, width), out, first - x, 1);
+            System.arraycopy(out, first + mirror(width - 1 + x, width), out, first + width - 1 + x, 1);
+        }
+    }
+    
+    /**
+     * Copies a slice into a new buffer with a halo of the specified radius along X and Y
+     * 
+     * @param in
+     *            the input slice, given as an XY (1D offset) array of the specified type
+     * @param type
+     *            the data type of the input array
+     * @param width
+     *            the slice width
+     * @param height
+     *            the slice height
+     * @param radiusX
+     *            the radius of the halo along X
+     * @param radiusY
+     *            the radius of the halo along Y
+     * @param zeroEdges
+     *            true for a zero halo, false for mirroring condition
+     * @param workType
+     *            the working type of the padded slice ({@link DataType#DOUBLE},
+     *            {@link DataType#FLOAT} or {@link DataType#INT})
+     * @return a (width + 2 * radiusX) x (height + 2 * radiusY) padded slice, given as an XY (1D
+     *         offset) array of the working type
+     */
+    static Object padSlice(Object in, DataType type, int width, int height, int radiusX, int radiusY, boolean zeroEdges, DataType workType)
+    {
+        final int paddedWidth = width + 2 * radiusX;
+        final int paddedHeight = height + 2 * radiusY;
+        
+        Object out = Array1DUtil.createArray(workType, paddedWidth * paddedHeight);
+        
+        for (int paddedY = 0; paddedY < paddedHeight; paddedY++)
+        {
+            int y = paddedY - radiusY;
+            
+            if (y < 0 || y >= height)
+            {
+                // zero rows are already filled
+                if (zeroEdges) continue;
+                
+                y = mirror(y, height);
+            }
+            
+            padLine(in, y * width, type, width, out, paddedY * paddedWidth, radiusX, zeroEdges);
+        }
+        
+        return out;
+    }
+    
+    /**
+     * Fills the halo of a padded slice from the data it surrounds (e.g. after this data was
+     * overwritten). Zero halos are left unchanged
+     * 
+     * @param slice
+     *            a (width + 2 * radiusX) x (height + 2 * radiusY) padded slice, given as an XY (1D
+     *            offset) array of the working type
+     * @param zeroEdges
+     *            true for a zero halo, false for mirroring condition
+     */
+    static void fillHalo(Object slice, int width, int height, int radiusX, int radiusY, boolean zeroEdges)
+    {
+        if (zeroEdges) return;
+        
+        final int paddedWidth = width + 2 * radiusX;
+        final int paddedHeight = height + 2 * radiusY;
+        
+        for (int y = 0; y < height; y++)
+        {
+            final int first = (y + radiusY) * paddedWidth + radiusX;
+            
+            for (int x = 1; x <= radiusX; x++)
+            {
+                System.arraycopy(slice, first + mirror(-x, width), slice, first - x, 1);
+                System.arraycopy(slice, first + mirror(width - 1 + x, width), slice, first + width - 1 + x, 1);
+            }
+        }
+        
+        for (int paddedY = 0; paddedY < paddedHeight; paddedY++)
+        {
+            int y = paddedY - radiusY;
+            
+            if (y < 0 || y >= height) System.arraycopy(slice, (mirror(y, height) + radiusY) * paddedWidth, slice, paddedY * paddedWidth, paddedWidth);
+        }
+    }
+    
+    /**
+     * Surrounds a stack of slices with a halo of the specified radius along Z. Slices are not
+     * copied: the halo refers either to the mirrored slices or to a single zero slice, therefore
+     * the returned slices must not be modified
+     * 
+     * @param slices
+     *            the input data, given as a [Z (slice)][XY (1D offset)] array of the working type
+     * @param radius
+     *            the radius of the halo along Z
+     * @param zeroEdges
+     *            true for a zero halo, false for mirroring condition
+     * @return a [Z + 2 * radius (slice)][XY (1D offset)] array of the same type as the input
+     */
+    static Object[] padSlices(Object[] slices, int radius, boolean zeroEdges)
+    {
+        final int depth = slices.length;
+        final Class<?> sliceClass = slices.getClass().getComponentType();
+        
+        Object[] out = (Object[]) Array.newInstance(sliceClass, depth + 2 * radius);
+        
+        Object zero = zeroEdges && radius > 0 ? Array.newInstance(sliceClass.getComponentType(), Array.getLength(slices[0])) : null;
+        
+        for (int paddedZ = 0; paddedZ < out.length; paddedZ++)
+        {
+            int z = paddedZ - radius;
+            
+            if (z >= 0 && z < depth)
+            {
+                out[paddedZ] = slices[z];
+            }
+            else
+            {
+                out[paddedZ] = zeroEdges ? zero : slices[mirror(z, depth)];
+            }
+        }
+        
+        return out;
+    }
+    
+    /**
+     * Converts a stack to the working type, surrounded by a halo of the specified radius in each
+     * dimension (see {@link #padSlice(Object, DataType, int, int, int, int, boolean, DataType)} and
+     * {@link #padSlices(Object[], int, boolean)})
+     * 
+     * @param in_Z_XY
+     *            the input data, given as a [Z (slice)][XY (1D offset)] array of the specified type
+     * @param type
+     *            the data type of the input array
+     * @param workType
+     *            the working type of the padded stack ({@link DataType#DOUBLE},
+     *            {@link DataType#FLOAT} or {@link DataType#INT})
+     * @return a [Z + 2 * radiusZ (slice)][XY (1D offset)] array of the working type (the slices of
+     *         the halo along Z must not be modified)
+     */
+    static Object[] padStack(Object[] in_Z_XY, DataType type, int width, int height, int radiusX, int radiusY, int radiusZ, boolean zeroEdges, DataType workType)
+    {
+        Object[] slices = createStack(workType, in_Z_XY.length, 0);
+        
+        for (int z = 0; z < slices.length; z++)
+            slices[z] = padSlice(in_Z_XY[z], type, width, height, radiusX, radiusY, zeroEdges, workType);
+        
+        return padSlices(slices, radiusZ, zeroEdges);
+    }
+    
+    /**
+     * Allocates a stack of working buffers
+     * 
+     * @param workType
+     *            the working type ({@link DataType#DOUBLE}, {@link DataType#FLOAT} or
+     *            {@link DataType#INT})
+     * @param depth
+     *            the number of slices
+     * @param sliceSize
+     *            the size of each slice, or 0 to leave the slices to be assigned
+     * @return a [Z (slice)][XY (1D offset)] array of the working type (e.g. a double[][] array)
+     */
+    static Object[] createStack(DataType workType, int depth, int sliceSize)
+    {
+        Object[] stack = (Object[]) Array.newInstance(Array1DUtil.createArray(workType, 0).getClass(), depth);
+        
+        if (sliceSize > 0) for (int z = 0; z < depth; z++)
+            stack[z] = Array1DUtil.createArray(workType, sliceSize);
+        
+        return stack;
+    }
+    
+    /**
+     * Converts a block of a stack to double precision, surrounded by a halo of the specified radius
+     * in each dimension. The block may extend beyond the stack, in which case the missing values
+     * also follow the boundary condition
+     * 
+     * @param in_Z_XY
+     *            the input data, given as a [Z (slice)][XY (1D offset)] array of the specified type
+     * @param type
+     *            the data type of the input array
+     * @param x0
+     *            the X coordinate of the first block element (excluding the halo)
+     * @param y0
+     *            the Y coordinate of the first block element (excluding the halo)
+     * @param z0
+     *            the Z coordinate of the first block element (excluding the halo)
+     * @return a [blockDepth + 2 * radiusZ (slice)][XY (1D offset)] double array of slices of size
+     *         (blockWidth + 2 * radiusX) x (blockHeight + 2 * radiusY)
+     */
+    static double[][] padBlock(Object[] in_Z_XY, DataType type, int width, int height, int x0, int y0, int z0, int blockWidth, int blockHeight, int blockDepth, int radiusX,
+            int radiusY, int radiusZ, boolean zeroEdges)
+    {
+        final int depth = in_Z_XY.length;
+        final int paddedWidth = blockWidth + 2 * radiusX;
+        final int paddedHeight = blockHeight + 2 * radiusY;
+        
+        double[][] out = new double[blockDepth + 2 * radiusZ][paddedWidth * paddedHeight];
+        
+        // columns of the padded block, and those inside the image
+        final int fromX = x0 - radiusX, toX = x0 + blockWidth + radiusX;
+        final int innerFromX = Math.max(fromX, 0), innerToX = Math.min(toX, width);
+        
+        for (int paddedZ = 0; paddedZ < out.length; paddedZ++)
+        {
+            int z = z0 - radiusZ + paddedZ;
+            
+            if (z < 0 || z >= depth)
+            {
+                // zero slices are already filled
+                if (zeroEdges) continue;
+                
+                z = mirror(z, depth);
+            }
+            
+            Object in_XY = in_Z_XY[z];
+            double[] out_XY = out[paddedZ];
+            
+            for (int paddedY = 0; paddedY < paddedHeight; paddedY++)
+            {
+                int y = y0 - radiusY + paddedY;
+                
+                if (y < 0 || y >= height)
+                {
+                    // zero rows are already filled
+                    if (zeroEdges) continue;
+                    
+                    y = mirror(y, height);
+                }
+                
+                final int inOffset = y * width;
+                final int outOffset = paddedY * paddedWidth - fromX;
+                
+                SelectionFilter.gather(in_XY, inOffset + innerFromX, out_XY, outOffset + innerFromX, innerToX - innerFromX, type);
+                
+                if (zeroEdges) continue;
+                
+                for (int x = fromX; x < innerFromX; x++)
+                    SelectionFilter.gather(in_XY, inOffset + mirror(x, width), out_XY, outOffset + x, 1, type);
+                
+                for (int x = innerToX; x < toX; x++)
+                    SelectionFilter.gather(in_XY, inOffset + mirror(x, width), out_XY, outOffset + x, 1, type);
+            }
+        }
+        
+        return out;
+    }
+    
+    /**
+     * Sets the given range of a working buffer to zero
+     */
+    private static void clear(Object buffer, int from, int to)
+    {
+        if (buffer instanceof double[])
+        {
+            Arrays.fill((double[]) buffer, from, to, 0.0);
+        }
+        else if (buffer instanceof float[])
+        {
+            Arrays.fill((float[]) buffer, from, to, 0f);
+        }
+        else
+        {
+            Arrays.fill((int[]) buffer, from, to, 0);
+        }
+    }
+}
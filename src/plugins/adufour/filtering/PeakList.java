@@ -0,0 +1,100 @@
+package plugins.adufour.filtering;
+
+import java.util.Arrays;
+
+/**
+ * Compact list of peaks (local maxima) found in a sequence, stored as primitive arrays of
+ * coordinates and values.
+ * 
+ * @see LocalMax#findPeaks(icy.sequence.Sequence, double, int...)
+ */
+public class PeakList
+{
+    private int      size = 0;
+    
+    private int[]    x, y, z, t, c;
+    
+    private double[] values;
+    
+    /**
+     * Creates a new empty list
+     * 
+     * @param initialCapacity
+     *            the initial number of peaks that can be stored without resizing the list
+     */
+    public PeakList(int initialCapacity)
+    {
+        initialCapacity = Math.max(initialCapacity, 1);
+        
+        x = new int[initialCapacity];
+        y = new int[initialCapacity];
+        z = new int[initialCapacity];
+        t = new int[initialCapacity];
+        c = new int[initialCapacity];
+        values = new double[initialCapacity];
+    }
+    
+    void add(int peakX, int peakY, int peakZ, int peakT, int peakC, double value)
+    {
+        if (size == values.length)
+        {
+            int capacity = size * 2;
+            
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            z = Arrays.copyOf(z, capacity);
+            t = Arrays.copyOf(t, capacity);
+            c = Arrays.copyOf(c, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        
+        x[size] = peakX;
+        y[size] = peakY;
+        z[size] = peakZ;
+        t[size] = peakT;
+        c[size] = peakC;
+        values[size] = value;
+        size++;
+    }
+    
+    /**
+     * @return the number of peaks in the list
+     */
+    public int getSize()
+    {
+        return size;
+    }
+    
+    public int getX(int peak)
+    {
+        return x[peak];
+    }
+    
+    public int getY(int peak)
+    {
+        return y[peak];
+    }
+    
+    public int getZ(int peak)
+    {
+        return z[peak];
+    }
+    
+    public int getT(int peak)
+    {
+        return t[peak];
+    }
+    
+    public int getC(int peak)
+    {
+        return c[peak];
+    }
+    
+    /**
+     * @return the intensity of the specified peak
+     */
+    public double getValue(int peak)
+    {
+        return values[peak];
+    }
+}
@@ -0,0 +1,64 @@
+package plugins.adufour.filtering;
+
+import icy.type.DataType;
+
+/**
+ * Precision of the working buffers of the filters (see
+ * {@link Convolution#convolve(icy.sequence.Sequence, icy.sequence.Sequence, boolean, int, Precision)},
+ * {@link Convolution1D#convolve(icy.sequence.Sequence, icy.sequence.Sequence, icy.sequence.Sequence, icy.sequence.Sequence, int, plugins.adufour.vars.lang.VarBoolean, Precision)}
+ * and
+ * {@link Convolution1D#convolve(icy.sequence.Sequence, double[][], double[][], boolean, int, plugins.adufour.vars.lang.VarBoolean, Precision)}
+ * ). Single precision halves the memory used by the working copies of the data, and the memory
+ * traffic of the inner loops.<br>
+ * Single precision is only used for data types that it represents exactly (8-bit and 16-bit
+ * integers, and float), other data types are always processed in double precision (see
+ * {@link #forType(DataType)}).<br>
+ * Error bounds w.r.t. double precision, with u = 2<sup>-24</sup> (about 6e-8) the unit roundoff
+ * of single precision:
+ * <ul>
+ * <li>convolution with a kernel of n taps: each output value is accumulated in single precision,
+ * thus its error is at most (n + 1) u &Sigma;|w<sub>i</sub> x<sub>i</sub>| (the sum of the
+ * absolute products of the kernel weights and the data), and typically about &radic;n u times this
+ * sum. For instance, a normalized positive kernel (e.g. a Gaussian) of 49 taps applied to 16-bit
+ * data gives an error of at most 50 u 65535, i.e. 0.2 grey level before rounding to the output
+ * type, thus integer results differ by at most 1 from the double precision results</li>
+ * <li>separable convolution: the bound of each axis applies to the result of the previous axis
+ * (e.g. (nX + nY + 2) u &Sigma;|w<sub>i</sub> x<sub>i</sub>| in 2D)</li>
+ * <li>iterated convolution: the bound of each iteration applies to the result of the previous one
+ * (i.e. the error grows linearly with the number of iterations)</li>
+ * </ul>
+ * Convolutions in the Fourier domain (see {@link FFTConvolution}) always run in double precision.
+ */
+public enum Precision
+{
+    /** 64-bit floating-point working buffers (default) */
+    DOUBLE,
+    
+    /** 32-bit floating-point working buffers */
+    FLOAT;
+    
+    /**
+     * @param type
+     *            the type of the data to process
+     * @return the precision to use for data of the given type: {@link #FLOAT} if this precision is
+     *         FLOAT and the data type is represented exactly in single precision, {@link #DOUBLE}
+     *         otherwise
+     */
+    public Precision forType(DataType type)
+    {
+        if (this == DOUBLE) return DOUBLE;
+        
+        switch (type)
+        {
+        case UBYTE:
+        case BYTE:
+        case USHORT:
+        case SHORT:
+        case FLOAT:
+            return FLOAT;
+        
+        default:
+            return DOUBLE;
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package plugins.adufour.filtering;
 
-public class RemoveOutliers extends SelectionFilter
+public class RemoveOutliers extends LocalStatisticsFilter
 {
     
     @Override
@@ -33,4 +33,21 @@ public class RemoveOutliers extends SelectionFilter
         return currentValue;
     }
     
+    @Override
+    double process(double currentValue, double sum, double variance, int neighborhoodSize)
+    {
+        double mean = sum / neighborhoodSize;
+        
+        // threshold: 2 standard deviations by the mean
+        double stdev2 = 2 * Math.sqrt(variance);
+        
+        if (currentValue > mean + stdev2 || currentValue < mean - stdev2)
+        {
+            // return the mean of the data without the outlier
+            return (sum - currentValue) / (neighborhoodSize - 1);
+        }
+        
+        return currentValue;
+    }
+    
 }
@@ -0,0 +1,73 @@
+package plugins.adufour.filtering;
+
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+/**
+ * Converts the working buffers of the convolution engines to the output data type. All engines
+ * (direct, Fourier domain, separable and low-rank) follow the same rule for integer data types:
+ * values within {@link #EPSILON} (relative) of an integer are first snapped to this integer, then
+ * values are truncated and clamped to the data type. The rounding errors of the convolution (e.g.
+ * 4.9999999 instead of 5) therefore give the same integer result whichever engine computed
+ * them.<br>
+ * Float and double data types are converted without snapping.
+ */
+final class Rounding
+{
+    /**
+     * Relative distance under which a value is snapped to the nearest integer (values smaller
+     * than 1 use this distance as an absolute one)
+     */
+    static final double EPSILON = 1e-6;
+    
+    private Rounding()
+    {
+    }
+    
+    /**
+     * Converts values of a working buffer to the given data type
+     * 
+     * @param in
+     *            the working buffer (values converted to an integer data type are snapped in place)
+     * @param inOffset
+     *            the offset of the first value to convert
+     * @param out
+     *            the output array, of the specified type
+     * @param outOffset
+     *            the offset of the first converted value in the output array
+     * @param length
+     *            the number of values to convert
+     * @param type
+     *            the data type of the output array
+     */
+    static void toSafeArray(double[] in, int inOffset, Object out, int outOffset, int length, DataType type)
+    {
+        if (!type.isFloat()) for (int i = inOffset; i < inOffset + length; i++)
+            in[i] = snap(in[i]);
+        
+        Array1DUtil.doubleArrayToSafeArray(in, inOffset, out, outOffset, length, type.isSigned());
+    }
+    
+    /**
+     * Same as {@link #toSafeArray(double[], int, Object, int, int, DataType)}, for a single
+     * precision working buffer
+     */
+    static void toSafeArray(float[] in, int inOffset, Object out, int outOffset, int length, DataType type)
+    {
+        if (!type.isFloat()) for (int i = inOffset; i < inOffset + length; i++)
+            in[i] = (float) snap(in[i]);
+        
+        Array1DUtil.floatArrayToSafeArray(in, inOffset, out, outOffset, length, type.isSigned());
+    }
+    
+    /**
+     * @return the nearest integer if the given value is within {@link #EPSILON} (relative) of it,
+     *         or the value itself otherwise
+     */
+    static double snap(double value)
+    {
+        double integer = Math.rint(value);
+        
+        return Math.abs(value - integer) <= EPSILON * Math.max(1.0, Math.abs(value)) ? integer : value;
+    }
+}
@@ -2,16 +2,100 @@ package plugins.adufour.filtering;
 
 import icy.image.IcyBufferedImage;
 import icy.sequence.Sequence;
+import icy.system.SystemUtil;
 import icy.type.DataType;
 import icy.type.collection.array.Array1DUtil;
 import icy.util.OMEUtil;
 
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 public abstract class SelectionFilter extends Filter
 {
+    /**
+     * Creates an incremental neighborhood for this filter. If this method returns a non-null
+     * neighborhood, {@link #filter(Sequence, StructuringElement)} slides it along each image line
+     * instead of gathering the full neighborhood of each pixel and calling
+     * {@link #process(double, double[], int)}. The default implementation returns null.
+     * 
+     * @param capacity
+     *            the maximum number of values in the neighborhood at any time
+     * @return a new (empty) neighborhood, or null if this filter cannot be computed incrementally.
+     *         A neighborhood is only used by one thread at a time (therefore it does not need to be
+     *         thread-safe), and is reused for successive image lines: all values leave the
+     *         neighborhood at the end of each line
+     */
+    public IncrementalNeighborhood createIncrementalNeighborhood(int capacity)
+    {
+        return null;
+    }
+    
+    /**
+     * Filters an entire stack (all slices of a given channel and time point), by submitting its
+     * tasks to the pipeline of the pass. This method is called for box-shaped neighborhoods by
+     * {@link #filter(Sequence, StructuringElement)} before falling back to the pixel-wise
+     * {@link #process(double, double[], int)} method, and can be overridden by filters that are
+     * computed more efficiently by sweeping the whole stack (e.g. using running sums).
+     * Implementations must produce the same result as the pixel-wise method, i.e. the neighborhood
+     * is clipped at the image borders, and must not wait for their tasks: the pipeline bounds the
+     * number of tasks in flight, such that the tasks of successive channels and time points
+     * overlap.
+     * 
+     * @param in_Z_XY
+     *            the input data, given as a [Z (slice)][XY (1D offset)] array of the specified type
+     * @param out_Z_XY
+     *            the output data, given as a [Z (slice)][XY (1D offset)] array of the specified type
+     * @param type
+     *            the data type of the input and output arrays
+     * @param width
+     *            the image width
+     * @param height
+     *            the image height
+     * @param radiusX
+     *            the neighborhood radius along X
+     * @param radiusY
+     *            the neighborhood radius along Y
+     * @param radiusZ
+     *            the neighborhood radius along Z
+     * @param pipeline
+     *            the pipeline of the pass, to submit the tasks to
+     * @param monitor
+     *            the monitor of the pass, which should be checked for cancellation, and to which the
+     *            filtered lines should be reported, regularly (e.g. after each line or slice)
+     * @return true if the tasks filtering the stack have been submitted, or false if the filter
+     *         should be applied pixel by pixel
+     * @throws InterruptedException
+     * @throws ExecutionException
+     *             if one of the tasks awaited by the pipeline has failed
+     */
+    boolean filterStack(Object[] in_Z_XY, Object[] out_Z_XY, DataType type, int width, int height, int radiusX, int radiusY, int radiusZ, TaskPipeline pipeline,
+            TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        return false;
+    }
+    
+    /**
+     * Computes the height of the bands of lines by which the stack filters (see
+     * {@link #filterStack(Object[], Object[], DataType, int, int, int, int, int, TaskPipeline, TaskMonitor)}) sweep a stack:
+     * each band is filtered through all slices by a single task, with a few bands per processor.
+     * Bands are at least as high as the neighborhood along Y, such that the lines read around each
+     * band (its halo) at most double its cost
+     * 
+     * @param height
+     *            the image height
+     * @param radiusY
+     *            the neighborhood radius along Y
+     * @return the height of the bands (the last band may be smaller)
+     */
+    static int getBandHeight(int height, int radiusY)
+    {
+        final int nbBands = SystemUtil.getAvailableProcessors() * 4;
+        
+        int bandHeight = Math.max((height + nbBands - 1) / nbBands, 2 * radiusY + 1);
+        
+        return Math.min(bandHeight, height);
+    }
+    
     /**
      * Process the current image pixel
      * 
@@ -27,6 +111,202 @@ public abstract class SelectionFilter extends Filter
      */
     abstract double process(double currentValue, double[] neighborhood, int neighborHoodSize);
     
+    /**
+     * Copies a contiguous run of values from the given primitive array into a double array. The
+     * data type is resolved once per run (instead of once per value with
+     * {@link Array1DUtil#getValue(Object, int, DataType)}), and each type is read with a dedicated
+     * loop.
+     * 
+     * @param array
+     *            the input primitive array
+     * @param offset
+     *            the offset of the first value to copy in the input array
+     * @param out
+     *            the output double array
+     * @param outOffset
+     *            the offset of the first value to write in the output array
+     * @param length
+     *            the number of values to copy
+     * @param type
+     *            the data type of the input array
+     */
+    static void gather(Object array, int offset, double[] out, int outOffset, int length, DataType type)
+    {
+        final int end = offset + length;
+        
+        switch (type)
+        {
+        case UBYTE: {
+            byte[] in = (byte[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i] & 0xff;
+        }
+            break;
+        
+        case BYTE: {
+            byte[] in = (byte[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i];
+        }
+            break;
+        
+        case USHORT: {
+            short[] in = (short[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i] & 0xffff;
+        }
+            break;
+        
+        case SHORT: {
+            short[] in = (short[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i];
+        }
+            break;
+        
+        case UINT: {
+            int[] in = (int[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i] & 0xffffffffL;
+        }
+            break;
+        
+        case INT: {
+            int[] in = (int[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i];
+        }
+            break;
+        
+        case FLOAT: {
+            float[] in = (float[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i];
+        }
+            break;
+        
+        case DOUBLE:
+            System.arraycopy(array, offset, out, outOffset, length);
+            break;
+        
+        default:
+            Array1DUtil.arrayToDoubleArray(array, offset, out, outOffset, length, type.isSigned());
+        }
+    }
+    
+    /**
+     * Same as {@link #gather(Object, int, double[], int, int, DataType)}, in single precision
+     */
+    static void gather(Object array, int offset, float[] out, int outOffset, int length, DataType type)
+    {
+        final int end = offset + length;
+        
+        switch (type)
+        {
+        case UBYTE: {
+            byte[] in = (byte[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i] & 0xff;
+        }
+            break;
+        
+        case BYTE: {
+            byte[] in = (byte[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i];
+        }
+            break;
+        
+        case USHORT: {
+            short[] in = (short[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i] & 0xffff;
+        }
+            break;
+        
+        case SHORT: {
+            short[] in = (short[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i];
+        }
+            break;
+        
+        case FLOAT:
+            System.arraycopy(array, offset, out, outOffset, length);
+            break;
+        
+        default:
+            Array1DUtil.arrayToFloatArray(array, offset, out, outOffset, length, type.isSigned());
+        }
+    }
+    
+    /**
+     * Same as {@link #gather(Object, int, double[], int, int, DataType)}, as integers (the values
+     * of 32-bit and 64-bit data types may not fit)
+     */
+    static void gather(Object array, int offset, int[] out, int outOffset, int length, DataType type)
+    {
+        final int end = offset + length;
+        
+        switch (type)
+        {
+        case UBYTE: {
+            byte[] in = (byte[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i] & 0xff;
+        }
+            break;
+        
+        case BYTE: {
+            byte[] in = (byte[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i];
+        }
+            break;
+        
+        case USHORT: {
+            short[] in = (short[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i] & 0xffff;
+        }
+            break;
+        
+        case SHORT: {
+            short[] in = (short[]) array;
+            for (int i = offset; i < end; i++, outOffset++)
+                out[outOffset] = in[i];
+        }
+            break;
+        
+        case INT:
+            System.arraycopy(array, offset, out, outOffset, length);
+            break;
+        
+        default:
+            Array1DUtil.arrayToIntArray(array, offset, out, outOffset, length, type.isSigned());
+        }
+    }
+    
+    /**
+     * Same as {@link #gather(Object, int, double[], int, int, DataType)}, into a working buffer of
+     * any type (double, float or int array)
+     */
+    static void gather(Object array, int offset, Object out, int outOffset, int length, DataType type)
+    {
+        if (out instanceof double[])
+        {
+            gather(array, offset, (double[]) out, outOffset, length, type);
+        }
+        else if (out instanceof float[])
+        {
+            gather(array, offset, (float[]) out, outOffset, length, type);
+        }
+        else
+        {
+            gather(array, offset, (int[]) out, outOffset, length, type);
+        }
+    }
+    
     /**
      * Filter the given sequence with the specified non-linear filter on the specified (square)
      * neighborhood. Note that some operations require double floating-point precision, therefore
@@ -49,143 +329,587 @@ public abstract class SelectionFilter extends Filter
      */
     public Sequence filterSquare(Sequence sequence, int... radius)
     {
+        if (radius.length == 0) throw new IllegalArgumentException("Provide at least one filter radius");
+        
+        final int kWidth = radius[0];
+        final int kHeight = radius.length == 1 ? kWidth : radius[1];
+        final int kDepth = radius.length == 1 ? kWidth : radius.length == 2 ? 0 : radius[2];
+        
+        return filter(sequence, StructuringElement.box(kWidth, kHeight, kDepth));
+    }
+    
+    /**
+     * Filter the given sequence with the specified non-linear filter on the neighborhood defined by
+     * the given structuring element. The neighborhood is clipped at the image borders. The result
+     * is converted back to the same type as the given input sequence.
+     * 
+     * @param sequence
+     *            the sequence to filter
+     * @param element
+     *            the structuring element defining the neighborhood of each pixel
+     * @return the filtered sequence
+     */
+    public Sequence filter(Sequence sequence, StructuringElement element)
+    {
+        return filterEach(sequence, element, this)[0];
+    }
+    
+    /**
+     * Applies several selection filters to the given sequence in a single pass: the neighborhood
+     * of each pixel is gathered once and given to each filter in turn. The results are stored in a
+     * single sequence, where the channels of the first filter come first, followed by those of the
+     * second filter, etc.<br>
+     * The service, stop flag and progress variables of the first filter are used for the whole
+     * process.
+     * 
+     * @param sequence
+     *            the sequence to filter
+     * @param element
+     *            the structuring element defining the neighborhood of each pixel
+     * @param filters
+     *            the filters to apply
+     * @return a sequence with <code>filters.length * sequence.getSizeC()</code> channels
+     */
+    public static Sequence filterAll(Sequence sequence, StructuringElement element, SelectionFilter... filters)
+    {
+        if (filters.length == 0) throw new IllegalArgumentException("Provide at least one filter");
+        
         Sequence out = new Sequence(OMEUtil.createOMEMetadata(sequence.getMetadata()));
-        out.setName(sequence.getName() + "_" + getDescriptor().getName());
         
-        stopFlag.setValue(false);
-        progress.setValue(0.0);
+        String name = sequence.getName();
+        for (SelectionFilter filter : filters)
+            name += "_" + filter.getDescriptor().getName();
+        out.setName(name);
         
-        if (radius.length == 0) throw new IllegalArgumentException("Provide at least one filter radius");
+        Sequence[] outputs = new Sequence[filters.length];
+        int[] firstChannels = new int[filters.length];
+        
+        for (int f = 0; f < filters.length; f++)
+        {
+            outputs[f] = out;
+            firstChannels[f] = f * sequence.getSizeC();
+        }
+        
+        filter(sequence, element, filters, outputs, firstChannels);
+        
+        for (int f = 0; f < filters.length; f++)
+            for (int c = 0; c < sequence.getSizeC(); c++)
+                out.setChannelName(firstChannels[f] + c, filters[f].getDescriptor().getName() + " (channel " + c + ")");
+        
+        return out;
+    }
+    
+    /**
+     * Applies several selection filters to the given sequence in a single pass, as in
+     * {@link #filterAll(Sequence, StructuringElement, SelectionFilter...)}, but stores the result
+     * of each filter in a separate sequence
+     * 
+     * @param sequence
+     *            the sequence to filter
+     * @param element
+     *            the structuring element defining the neighborhood of each pixel
+     * @param filters
+     *            the filters to apply
+     * @return one filtered sequence per filter (in the same order as the filters)
+     */
+    public static Sequence[] filterEach(Sequence sequence, StructuringElement element, SelectionFilter... filters)
+    {
+        if (filters.length == 0) throw new IllegalArgumentException("Provide at least one filter");
+        
+        Sequence[] outputs = new Sequence[filters.length];
+        
+        for (int f = 0; f < filters.length; f++)
+        {
+            outputs[f] = new Sequence(OMEUtil.createOMEMetadata(sequence.getMetadata()));
+            outputs[f].setName(sequence.getName() + "_" + filters[f].getDescriptor().getName());
+        }
+        
+        filter(sequence, element, filters, outputs, new int[filters.length]);
+        
+        return outputs;
+    }
+    
+    /**
+     * Filtering engine
+     * 
+     * @param outputs
+     *            the output sequence of each filter
+     * @param firstChannels
+     *            the channel of the output sequence where the first channel of each filter is
+     *            stored
+     */
+    private static void filter(Sequence sequence, StructuringElement element, SelectionFilter[] filters, Sequence[] outputs, int[] firstChannels)
+    {
+        final SelectionFilter master = filters[0];
+        final int nbFilters = filters.length;
+        
+        master.stopFlag.setValue(false);
         
         final int width = sequence.getSizeX();
         final int height = sequence.getSizeY();
         final int depth = sequence.getSizeZ();
         final int channels = sequence.getSizeC();
         final DataType type = sequence.getDataType_();
-        final boolean signed = sequence.isSignedDataType();
         
-        final double taskIncrement = 1.0 / (height * depth * channels * sequence.getSizeT());
+        // progress is counted in filtered lines (of each filter)
+        final TaskMonitor monitor = new TaskMonitor(master.stopFlag, master.progress, (double) height * depth * channels * sequence.getSizeT() * nbFilters);
         
-        final int kWidth = radius[0];
-        final int kHeight = radius.length == 1 ? kWidth : radius[1];
-        final int kDepth = radius.length == 1 ? kWidth : radius.length == 2 ? 0 : radius[2];
-        
-        final Object[] in_Z_XY = new Object[depth];
+        final Pass pass = new Pass(sequence, element, filters, monitor);
         
-        final double[] cache = new double[width * height];
+        // create a pipeline of tasks for multi-thread processing
+        // => rationale: one task per tile of consecutive lines, with a few tiles per processor.
+        // Tiles of successive slices, channels and frames overlap (they only read the input), and
+        // so do the bands of the stack filters (there are as many bands per stack as tiles per
+        // slice, thus a few stacks are in flight)
+        final int nbTilesPerSlice = SystemUtil.getAvailableProcessors() * 4;
+        final int tileHeight = Math.max(1, (height + nbTilesPerSlice - 1) / nbTilesPerSlice);
         
-        // create an array of tasks for multi-thread processing
-        // => rationale: one task per image line
-        ArrayList<Future<?>> tasks = new ArrayList<Future<?>>(height);
+        TaskPipeline pipeline = new TaskPipeline(master.service, nbTilesPerSlice * 4, monitor);
         
-        convolution: for (int t = 0; t < sequence.getSizeT(); t++)
+        try
         {
-            for (int z = 0; z < depth; z++)
-                out.setImage(t, z, new IcyBufferedImage(width, height, channels, type));
-            
-            for (int c = 0; c < channels; c++)
+            convolution: for (int t = 0; t < sequence.getSizeT(); t++)
             {
-                for (int z = 0; z < depth; z++)
-                    in_Z_XY[z] = sequence.getImage(t, z, c).getDataXY(0);
+                outputs: for (int f = 0; f < nbFilters; f++)
+                {
+                    // several filters may share the same output: create its images only once
+                    int outChannels = 0;
+                    
+                    for (int g = 0; g < nbFilters; g++)
+                    {
+                        if (outputs[g] != outputs[f]) continue;
+                        
+                        if (g < f) continue outputs;
+                        
+                        outChannels = Math.max(outChannels, firstChannels[g] + channels);
+                    }
+                    
+                    for (int z = 0; z < depth; z++)
+                        outputs[f].setImage(t, z, new IcyBufferedImage(width, height, outChannels, type));
+                }
                 
-                for (int z = 0; z < depth; z++)
+                for (int c = 0; c < channels; c++)
                 {
-                    final int minZinclusive = Math.max(z - kDepth, 0);
-                    final int maxZexclusive = Math.min(z + kDepth + 1, depth);
-                    final Object _inXY = in_Z_XY[z];
-                    final Object _outXY = out.getDataXY(t, z, c);
+                    final Pass.Stack stack = pass.new Stack();
                     
-                    // clear the task array
-                    tasks.clear();
+                    for (int z = 0; z < depth; z++)
+                        stack.in_Z_XY[z] = sequence.getImage(t, z, c).getDataXY(0);
                     
-                    for (int y = 0; y < height; y++)
+                    for (int f = 0; f < nbFilters; f++)
                     {
-                        final int line = y;
-                        final int minYinclusive = Math.max(y - kHeight, 0);
-                        final int maxYexclusive = Math.min(y + kHeight + 1, height);
-                        final int lineOffset = y * width;
+                        // a new array for each filter: the tasks of the stack filters still use it
+                        // after they are submitted
+                        Object[] out_Z_XY = new Object[depth];
                         
-                        final int maxNeighbors = (1 + (maxZexclusive - minZinclusive) * 2) * (1 + (maxYexclusive - minYinclusive) * 2) * (1 + kWidth * 2);
+                        for (int z = 0; z < depth; z++)
+                            out_Z_XY[z] = outputs[f].getDataXY(t, z, firstChannels[f] + c);
                         
-                        // submit a new filtering task for the current line
-                        tasks.add(service.submit(new Runnable()
+                        // try filtering the whole stack at once first
+                        if (element.isBox()
+                                && filters[f].filterStack(stack.in_Z_XY, out_Z_XY, type, width, height, element.getRadiusX(), element.getRadiusY(), element.getRadiusZ(),
+                                        pipeline, monitor))
                         {
-                            @Override
-                            public void run()
+                            if (monitor.isCancelled()) break convolution;
+                            
+                            continue;
+                        }
+                        
+                        stack.pendingOut_Z_XY[stack.nbPending] = out_Z_XY;
+                        stack.pending[stack.nbPending++] = f;
+                    }
+                    
+                    if (stack.nbPending == 0) continue;
+                    
+                    for (int z = 0; z < depth; z++)
+                    {
+                        final int slice = z;
+                        
+                        for (int y = 0; y < height; y += tileHeight)
+                        {
+                            final int minY = y;
+                            final int maxY = Math.min(y + tileHeight, height);
+                            
+                            // submit a new filtering task for the current tile
+                            pipeline.submit(new Runnable()
                             {
-                                double[] neighborhood = new double[maxNeighbors];
-                                
-                                int inX, inY, inZ;
-                                int inXY, outXY = lineOffset;
-                                
-                                double currentPixel;
-                                
-                                // process each pixel of the current line
-                                for (int x = 0; x < width; x++, outXY++)
+                                @Override
+                                public void run()
                                 {
-                                    currentPixel = Array1DUtil.getValue(_inXY, outXY, type);
-                                    
-                                    int localNeighborHoodSize = 0;
-                                    int minXinclusive = Math.max(x - kWidth, 0);
-                                    int maxXexclusive = Math.min(x + kWidth + 1, width);
-                                    
-                                    // browse the neighborhood along Z
-                                    for (inZ = minZinclusive; inZ < maxZexclusive; inZ++)
-                                    {
-                                        Object neighborSlice = in_Z_XY[inZ];
-                                        
-                                        // browse the neighborhood along Y
-                                        for (inY = minYinclusive; inY < maxYexclusive; inY++)
-                                        {
-                                            // this is the line offset
-                                            inXY = inY * width + minXinclusive;
-                                            
-                                            // browse the neighborhood X
-                                            for (inX = minXinclusive; inX < maxXexclusive; inX++, inXY++, localNeighborHoodSize++)
-                                            {
-                                                neighborhood[localNeighborHoodSize] = Array1DUtil.getValue(neighborSlice, inXY, type);
-                                            }
-                                        }
-                                    }
-                                    
-                                    // the neighborhood has been browsed and stored.
-                                    // => the filter can be applied here
-                                    
-                                    cache[outXY] = process(currentPixel, neighborhood, localNeighborHoodSize);
+                                    pass.filterTile(stack, slice, minY, maxY);
                                 }
-                                
-                                Array1DUtil.doubleArrayToSafeArray(cache, lineOffset, _outXY, lineOffset, width, signed);
-                                
-                                if (line % 3 == 0) progress.setValue(progress.getValue() + taskIncrement * 3);
-                            }
-                        }));
-                        
-                        if (stopFlag.getValue()) break;
-                        
-                    } // end for(y)
+                            });
+                            
+                            if (monitor.isCancelled()) break convolution;
+                        } // end for(y)
+                    } // end for(z)
+                } // end for(c)
+            } // end for(t)
+            
+            if (monitor.isCancelled())
+            {
+                pipeline.cancel();
+            }
+            else
+            {
+                pipeline.await();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            pipeline.cancel();
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            pipeline.cancel();
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            monitor.close();
+        }
+        
+        for (Sequence output : outputs)
+            output.dataChanged();
+    }
+    
+    /**
+     * State of a filtering pass over a sequence, shared by all the tiles of the pass
+     */
+    private static class Pass
+    {
+        final int                                width, height, depth;
+        
+        final DataType                           type;
+        
+        final boolean                            signed;
+        
+        final StructuringElement                 element;
+        
+        /**
+         * The runs of the structuring element, compiled for the current image width
+         */
+        final int[]                              runOffsets;
+        
+        final int                                maxNeighbors;
+        
+        final SelectionFilter[]                  filters;
+        
+        final TaskMonitor                        monitor;
+        
+        /**
+         * Scratch buffers that are not in use, recycled from one tile to the next such that no
+         * memory is allocated while filtering (there are at most as many buffers as worker threads)
+         */
+        final ConcurrentLinkedQueue<Scratch>     arenas = new ConcurrentLinkedQueue<Scratch>();
+        
+        Pass(Sequence sequence, StructuringElement element, SelectionFilter[] filters, TaskMonitor monitor)
+        {
+            this.width = sequence.getSizeX();
+            this.height = sequence.getSizeY();
+            this.depth = sequence.getSizeZ();
+            this.type = sequence.getDataType_();
+            this.signed = sequence.isSignedDataType();
+            this.element = element;
+            this.runOffsets = element.getRunOffsets(width);
+            this.maxNeighbors = element.getSize();
+            this.filters = filters;
+            this.monitor = monitor;
+        }
+        
+        /**
+         * Input and output data of a channel at a given time point
+         */
+        class Stack
+        {
+            final Object[]   in_Z_XY         = new Object[depth];
+            
+            /**
+             * The filters that are not computed on the whole stack at once (given by their index)
+             */
+            final int[]      pending         = new int[filters.length];
+            
+            int              nbPending       = 0;
+            
+            /**
+             * The output stack of each pending filter
+             */
+            final Object[][] pendingOut_Z_XY = new Object[filters.length][];
+        }
+        
+        /**
+         * Per-thread scratch buffers
+         */
+        class Scratch
+        {
+            final double[]                  currentLine   = new double[width];
+            
+            /**
+             * The filtered line of each pending filter
+             */
+            final double[][]                lineResults   = new double[filters.length][width];
+            
+            final double[]                  neighborhood  = new double[maxNeighbors];
+            
+            /**
+             * Copy of the neighborhood given to the filters (which may modify it)
+             */
+            final double[]                  copy          = new double[maxNeighbors];
+            
+            /**
+             * Number of runs of the element that intersect the current line
+             */
+            int                             nbLineRuns;
+            
+            /**
+             * Input slice, offset (of the first element, for the first pixel of the line) and
+             * length of each run intersecting the current line
+             */
+            final Object[]                  runSlices     = new Object[element.getRunCount()];
+            
+            final int[]                     runStarts     = new int[element.getRunCount()];
+            
+            final int[]                     runFirstX     = new int[element.getRunCount()];
+            
+            final int[]                     runLengths    = new int[element.getRunCount()];
+            
+            /**
+             * Input line of each run intersecting the current line (converted once per line for the
+             * incremental neighborhoods, allocated on first use)
+             */
+            double[][]                      runLines;
+            
+            /**
+             * Incremental neighborhood of each filter (created on first use, and emptied at the end
+             * of each line)
+             */
+            final IncrementalNeighborhood[] neighborhoods = new IncrementalNeighborhood[filters.length];
+            
+            final boolean[]                 created       = new boolean[filters.length];
+            
+            /**
+             * Flags the pending filters that need the full neighborhood of each pixel
+             */
+            final boolean[]                 gathered      = new boolean[filters.length];
+            
+            IncrementalNeighborhood getIncrementalNeighborhood(int filter)
+            {
+                if (!created[filter])
+                {
+                    neighborhoods[filter] = filters[filter].createIncrementalNeighborhood(maxNeighbors);
+                    created[filter] = true;
+                }
+                
+                return neighborhoods[filter];
+            }
+        }
+        
+        /**
+         * Filters the specified lines of a slice with all pending filters
+         * 
+         * @param stack
+         *            the stack to filter
+         * @param slice
+         *            the slice to filter
+         * @param minY
+         *            the first line of the tile (inclusive)
+         * @param maxY
+         *            the last line of the tile (exclusive)
+         */
+        void filterTile(Stack stack, int slice, int minY, int maxY)
+        {
+            Scratch scratch = arenas.poll();
+            if (scratch == null) scratch = new Scratch();
+            
+            try
+            {
+                for (int line = minY; line < maxY; line++)
+                {
+                    // stop between two lines if the pass was cancelled
+                    if (monitor.isCancelled()) return;
                     
-                    try
+                    filterLine(stack, scratch, slice, line);
+                    monitor.add(stack.nbPending);
+                }
+            }
+            finally
+            {
+                arenas.offer(scratch);
+            }
+        }
+        
+        private void filterLine(Stack stack, Scratch scratch, int slice, int line)
+        {
+            final int lineOffset = line * width;
+            
+            // read the current line once
+            gather(stack.in_Z_XY[slice], lineOffset, scratch.currentLine, 0, width, type);
+            
+            // keep the runs that are inside the image along Y and Z
+            scratch.nbLineRuns = 0;
+            
+            for (int run = 0; run < runOffsets.length; run++)
+            {
+                int inY = line + element.getRunY(run);
+                int inZ = slice + element.getRunZ(run);
+                
+                if (inY < 0 || inY >= height || inZ < 0 || inZ >= depth) continue;
+                
+                int i = scratch.nbLineRuns++;
+                scratch.runSlices[i] = stack.in_Z_XY[inZ];
+                scratch.runStarts[i] = lineOffset + runOffsets[run];
+                scratch.runFirstX[i] = element.getRunX(run);
+                scratch.runLengths[i] = element.getRunLength(run);
+            }
+            
+            int nbGathered = 0;
+            boolean runLinesRead = false;
+            
+            for (int p = 0; p < stack.nbPending; p++)
+            {
+                IncrementalNeighborhood slidingNeighborhood = scratch.getIncrementalNeighborhood(stack.pending[p]);
+                
+                scratch.gathered[p] = slidingNeighborhood == null;
+                
+                if (slidingNeighborhood != null)
+                {
+                    if (!runLinesRead)
                     {
-                        for (Future<?> f : tasks)
-                            f.get();
+                        readRunLines(scratch);
+                        runLinesRead = true;
                     }
-                    catch (InterruptedException e)
+                    
+                    slideLine(scratch, slidingNeighborhood, scratch.lineResults[p]);
+                }
+                else
+                {
+                    nbGathered++;
+                }
+            }
+            
+            if (nbGathered > 0) gatherLine(stack, scratch, nbGathered);
+            
+            for (int p = 0; p < stack.nbPending; p++)
+                Array1DUtil.doubleArrayToSafeArray(scratch.lineResults[p], 0, stack.pendingOut_Z_XY[p][slice], lineOffset, width, signed);
+        }
+        
+        /**
+         * Converts the whole input line of each run intersecting the current line (i.e. the line the
+         * run slides along) once, with the typed
+         * {@link SelectionFilter#gather(Object, int, double[], int, int, DataType)}
+         */
+        private void readRunLines(Scratch scratch)
+        {
+            if (scratch.runLines == null) scratch.runLines = new double[scratch.runSlices.length][width];
+            
+            for (int run = 0; run < scratch.nbLineRuns; run++)
+                gather(scratch.runSlices[run], scratch.runStarts[run] - scratch.runFirstX[run], scratch.runLines[run], 0, width, type);
+        }
+        
+        /**
+         * Slides the given neighborhood along the line: when moving to the next pixel, each run
+         * loses its first element and gains a new last element
+         */
+        private void slideLine(Scratch scratch, IncrementalNeighborhood neighborhood, double[] lineResult)
+        {
+            final int[] runFirstX = scratch.runFirstX;
+            final int[] runLengths = scratch.runLengths;
+            
+            // input lines of the runs (see readRunLines())
+            final double[][] runLines = scratch.runLines;
+            
+            // fill the neighborhood of the first pixel
+            for (int run = 0; run < scratch.nbLineRuns; run++)
+            {
+                int minX = Math.max(runFirstX[run], 0);
+                int maxX = Math.min(runFirstX[run] + runLengths[run], width);
+                
+                for (int x = minX; x < maxX; x++)
+                    neighborhood.enter(runLines[run][x]);
+            }
+            
+            for (int x = 0; x < width; x++)
+            {
+                lineResult[x] = neighborhood.evaluate(scratch.currentLine[x]);
+                
+                for (int run = 0; run < scratch.nbLineRuns; run++)
+                {
+                    int leavingX = x + runFirstX[run];
+                    int enteringX = leavingX + runLengths[run];
+                    
+                    if (leavingX >= 0 && leavingX < width) neighborhood.leave(runLines[run][leavingX]);
+                    
+                    if (enteringX >= 0 && enteringX < width) neighborhood.enter(runLines[run][enteringX]);
+                }
+            }
+            
+            // empty the neighborhood for the next line
+            for (int run = 0; run < scratch.nbLineRuns; run++)
+            {
+                int minX = Math.max(width + runFirstX[run], 0);
+                int maxX = Math.min(width + runFirstX[run] + runLengths[run], width);
+                
+                for (int x = minX; x < maxX; x++)
+                    neighborhood.leave(runLines[run][x]);
+            }
+        }
+        
+        /**
+         * Gathers the full neighborhood of each pixel of the line once, and processes it with each
+         * filter that needs it
+         */
+        private void gatherLine(Stack stack, Scratch scratch, int nbGathered)
+        {
+            final int kWidth = element.getRadiusX();
+            final double[] neighborhood = scratch.neighborhood;
+            
+            // filters may modify the neighborhood => give them a copy if needed
+            final double[] copy = nbGathered > 1 ? scratch.copy : neighborhood;
+            
+            // process each pixel of the current line
+            for (int x = 0; x < width; x++)
+            {
+                int localNeighborHoodSize = 0;
+                
+                if (x >= kWidth && x < width - kWidth)
+                {
+                    // the element is entirely inside the image along X
+                    // => copy each run without clipping
+                    for (int run = 0; run < scratch.nbLineRuns; run++)
                     {
-                        Thread.currentThread().interrupt();
-                        return out;
+                        gather(scratch.runSlices[run], scratch.runStarts[run] + x, neighborhood, localNeighborHoodSize, scratch.runLengths[run], type);
+                        localNeighborHoodSize += scratch.runLengths[run];
                     }
-                    catch (ExecutionException e)
+                }
+                else
+                {
+                    // clip each run to the image bounds
+                    for (int run = 0; run < scratch.nbLineRuns; run++)
                     {
-                        Thread.currentThread().interrupt();
-                        return out;
+                        int minXinclusive = Math.max(x + scratch.runFirstX[run], 0);
+                        int maxXexclusive = Math.min(x + scratch.runFirstX[run] + scratch.runLengths[run], width);
+                        
+                        if (maxXexclusive <= minXinclusive) continue;
+                        
+                        int runStart = scratch.runStarts[run] + minXinclusive - scratch.runFirstX[run];
+                        
+                        gather(scratch.runSlices[run], runStart, neighborhood, localNeighborHoodSize, maxXexclusive - minXinclusive, type);
+                        localNeighborHoodSize += maxXexclusive - minXinclusive;
                     }
+                }
+                
+                // the neighborhood has been browsed and stored.
+                // => the filters can be applied here
+                
+                for (int p = 0; p < stack.nbPending; p++)
+                {
+                    if (!scratch.gathered[p]) continue;
                     
-                    if (stopFlag.getValue()) break convolution;
-                } // end for(z)
-            } // end for(c)
-        } // end for(t)
-        
-        out.dataChanged();
-        return out;
+                    if (copy != neighborhood) System.arraycopy(neighborhood, 0, copy, 0, localNeighborHoodSize);
+                    
+                    scratch.lineResults[p][x] = filters[stack.pending[p]].process(scratch.currentLine[x], copy, localNeighborHoodSize);
+                }
+            }
+        }
     }
 }
@@ -1,40 +1,95 @@
 package plugins.adufour.filtering;
 
 import icy.plugin.abstract_.Plugin;
+import icy.sequence.Sequence;
+
+import java.util.Arrays;
+import java.util.List;
+
 import plugins.adufour.blocks.lang.Block;
 import plugins.adufour.blocks.util.VarList;
+import plugins.adufour.ezplug.EzVarEnum;
 import plugins.adufour.ezplug.EzVarInteger;
+import plugins.adufour.filtering.StructuringElement.Shape;
 import plugins.adufour.vars.lang.VarPlugin;
 import plugins.adufour.vars.lang.VarSequence;
 
 public class SelectionFilterBlock extends Plugin implements Block
 {
-    VarPlugin<SelectionFilter> filter  = new VarPlugin<SelectionFilter>("filter", SelectionFilter.class);
+    VarPlugin<SelectionFilter> filter    = new VarPlugin<SelectionFilter>("filter", SelectionFilter.class);
+    
+    /**
+     * Number of filters to apply (in a single pass) among {@link #filter}, {@link #filter2},
+     * {@link #filter3} and {@link #filter4}
+     */
+    EzVarInteger               nbFilters = new EzVarInteger("number of filters", 1, 1, 4, 1);
+    
+    VarPlugin<SelectionFilter> filter2   = new VarPlugin<SelectionFilter>("filter (2)", SelectionFilter.class);
+    
+    VarPlugin<SelectionFilter> filter3   = new VarPlugin<SelectionFilter>("filter (3)", SelectionFilter.class);
+    
+    VarPlugin<SelectionFilter> filter4   = new VarPlugin<SelectionFilter>("filter (4)", SelectionFilter.class);
+    
+    VarSequence                input     = new VarSequence("input sequence", null);
     
-    VarSequence                input   = new VarSequence("input sequence", null);
+    EzVarEnum<Shape>           shape     = new EzVarEnum<Shape>("neighborhood shape", Shape.values(), Shape.BOX);
     
-    EzVarInteger               radiusX = new EzVarInteger("filter radius (X)", 1, 0, Short.MAX_VALUE, 1);
+    EzVarInteger               radiusX   = new EzVarInteger("filter radius (X)", 1, 0, Short.MAX_VALUE, 1);
     
-    EzVarInteger               radiusY = new EzVarInteger("filter radius (Y)", 1, 0, Short.MAX_VALUE, 1);
+    EzVarInteger               radiusY   = new EzVarInteger("filter radius (Y)", 1, 0, Short.MAX_VALUE, 1);
     
-    EzVarInteger               radiusZ = new EzVarInteger("filter radius (Z)", 1, 0, Short.MAX_VALUE, 1);
+    EzVarInteger               radiusZ   = new EzVarInteger("filter radius (Z)", 1, 0, Short.MAX_VALUE, 1);
     
-    VarSequence                output  = new VarSequence("filtered sequence", null);
+    VarSequence                mask      = new VarSequence("neighborhood mask", null);
+    
+    VarSequence                output    = new VarSequence("filtered sequence", null);
+    
+    VarSequence                output2   = new VarSequence("filtered sequence (2)", null);
+    
+    VarSequence                output3   = new VarSequence("filtered sequence (3)", null);
+    
+    VarSequence                output4   = new VarSequence("filtered sequence (4)", null);
     
     @Override
     public void run()
     {
-        SelectionFilter selectionFilter;
+        List<VarPlugin<SelectionFilter>> filterVars = Arrays.asList(filter, filter2, filter3, filter4);
+        
+        SelectionFilter[] filters = new SelectionFilter[nbFilters.getValue()];
+        
+        for (int f = 0; f < filters.length; f++)
+            filters[f] = createFilter(filterVars.get(f));
+        
+        StructuringElement element;
+        
+        if (shape.getValue() == Shape.MASK)
+        {
+            element = StructuringElement.fromMask(mask.getValue(true));
+        }
+        else
+        {
+            element = StructuringElement.create(shape.getValue(), radiusX.getValue(), radiusY.getValue(), radiusZ.getValue());
+        }
+        
+        // gather each neighborhood once for all filters
+        Sequence[] results = SelectionFilter.filterEach(input.getValue(true), element, filters);
+        
+        List<VarSequence> outputs = Arrays.asList(output, output2, output3, output4);
+        
+        for (int f = 0; f < outputs.size(); f++)
+            outputs.get(f).setValue(f < results.length ? results[f] : null);
+    }
+    
+    private SelectionFilter createFilter(VarPlugin<SelectionFilter> filterVar)
+    {
         try
         {
-            selectionFilter = (SelectionFilter) filter.getValue(true).getPluginClass().newInstance();
+            return (SelectionFilter) filterVar.getValue(true).getPluginClass().newInstance();
         }
         catch (Exception e)
         {
-            throw new RuntimeException("Unable to create the " + filter.getValueAsString() + " filter");
+            throw new RuntimeException("Unable to create the " + filterVar.getValueAsString() + " filter");
         }
-        
-        output.setValue(selectionFilter.filterSquare(input.getValue(true), radiusX.getValue(), radiusY.getValue(), radiusZ.getValue()));
     }
     
     @Override
@@ -42,15 +97,24 @@ public class SelectionFilterBlock extends Plugin implements Block
     {
         inputMap.add(input);
         inputMap.add(filter);
+        inputMap.add(nbFilters.getVariable());
+        inputMap.add(filter2);
+        inputMap.add(filter3);
+        inputMap.add(filter4);
+        inputMap.add(shape.getVariable());
         inputMap.add(radiusX.getVariable());
         inputMap.add(radiusY.getVariable());
         inputMap.add(radiusZ.getVariable());
+        inputMap.add(mask);
     }
     
     @Override
     public void declareOutput(VarList outputMap)
     {
         outputMap.add(output);
+        outputMap.add(output2);
+        outputMap.add(output3);
+        outputMap.add(output4);
     }
     
 }
@@ -0,0 +1,227 @@
+package plugins.adufour.filtering;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Decomposition of a 2D kernel into a sum of separable terms, obtained by singular value
+ * decomposition. Each term is the (outer) product of a 1D kernel along X and a 1D kernel along Y,
+ * thus convolving with a kernel of rank r costs r convolutions along X and Y (see
+ * {@link Convolution1D#convolve(icy.sequence.Sequence, double[][], double[][], boolean, int, plugins.adufour.vars.lang.VarBoolean)}
+ * ) instead of a full 2D convolution. Many kernels are exactly separable (e.g. Sobel, Prewitt) or
+ * have a very low rank (e.g. Gabor kernels have rank 2).
+ */
+public class SeparableKernel
+{
+    /**
+     * Maximum number of Jacobi sweeps (convergence usually takes less than 10 sweeps)
+     */
+    private static final int MAX_SWEEPS = 50;
+    
+    private final int        width, height;
+    
+    /**
+     * Singular values, in decreasing order
+     */
+    private final double[]   singularValues;
+    
+    /**
+     * Left singular vectors (along Y), weighted by the square root of the singular values
+     */
+    private final double[][] kernelsY;
+    
+    /**
+     * Right singular vectors (along X), weighted by the square root of the singular values
+     */
+    private final double[][] kernelsX;
+    
+    /**
+     * Decomposes the given 2D kernel
+     * 
+     * @param kernel
+     *            the kernel values, given as an XY (1D offset) array
+     * @param width
+     *            the kernel width
+     * @param height
+     *            the kernel height
+     */
+    public SeparableKernel(double[] kernel, int width, int height)
+    {
+        if (kernel.length != width * height) throw new IllegalArgumentException("Kernel size does not match its dimensions");
+        
+        this.width = width;
+        this.height = height;
+        
+        // one-sided Jacobi: columns of A (height x width) are rotated until orthogonal,
+        // such that A.V = U.S, with V accumulating the rotations
+        
+        double[][] columns = new double[width][height];
+        double[][] v = new double[width][width];
+        
+        for (int x = 0; x < width; x++)
+        {
+            for (int y = 0; y < height; y++)
+                columns[x][y] = kernel[y * width + x];
+            
+            v[x][x] = 1.0;
+        }
+        
+        for (int sweep = 0; sweep < MAX_SWEEPS; sweep++)
+        {
+            boolean rotated = false;
+            
+            for (int p = 0; p < width - 1; p++)
+                for (int q = p + 1; q < width; q++)
+                {
+                    double[] colP = columns[p], colQ = columns[q];
+                    
+                    double alpha = 0, beta = 0, gamma = 0;
+                    
+                    for (int y = 0; y < height; y++)
+                    {
+                        alpha += colP[y] * colP[y];
+                        beta += colQ[y] * colQ[y];
+                        gamma += colP[y] * colQ[y];
+                    }
+                    
+                    if (gamma == 0 || Math.abs(gamma) <= 1e-15 * Math.sqrt(alpha * beta)) continue;
+                    
+                    rotated = true;
+                    
+                    double zeta = (beta - alpha) / (2 * gamma);
+                    double t = (zeta >= 0 ? 1 : -1) / (Math.abs(zeta) + Math.sqrt(1 + zeta * zeta));
+                    double c = 1 / Math.sqrt(1 + t * t);
+                    double s = c * t;
+                    
+                    rotate(colP, colQ, c, s);
+                    rotate(v[p], v[q], c, s);
+                }
+            
+            if (!rotated) break;
+        }
+        
+        // sort the terms by decreasing singular value
+        
+        final double[] norms = new double[width];
+        Integer[] order = new Integer[width];
+        
+        for (int x = 0; x < width; x++)
+        {
+            double norm = 0;
+            for (double d : columns[x])
+                norm += d * d;
+            norms[x] = Math.sqrt(norm);
+            order[x] = x;
+        }
+        
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer o1, Integer o2)
+            {
+                return Double.compare(norms[o2], norms[o1]);
+            }
+        });
+        
+        singularValues = new double[width];
+        kernelsX = new double[width][];
+        kernelsY = new double[width][];
+        
+        for (int term = 0; term < width; term++)
+        {
+            int x = order[term];
+            double sigma = norms[x];
+            double weight = Math.sqrt(sigma);
+            
+            singularValues[term] = sigma;
+            kernelsX[term] = new double[width];
+            kernelsY[term] = new double[height];
+            
+            for (int i = 0; i < width; i++)
+                kernelsX[term][i] = v[x][i] * weight;
+            
+            // A.v = sigma.u => u.sqrt(sigma) = A.v / sqrt(sigma)
+            if (sigma > 0) for (int y = 0; y < height; y++)
+                kernelsY[term][y] = columns[x][y] / weight;
+        }
+    }
+    
+    private static void rotate(double[] p, double[] q, double c, double s)
+    {
+        for (int i = 0; i < p.length; i++)
+        {
+            double a = p[i], b = q[i];
+            p[i] = c * a - s * b;
+            q[i] = s * a + c * b;
+        }
+    }
+    
+    /**
+     * @param tolerance
+     *            the maximum relative error of the approximation, measured as the ratio between the
+     *            (Frobenius) norms of the residual and of the kernel (0 for an exact decomposition,
+     *            up to rounding errors)
+     * @return the smallest number of separable terms approximating the kernel within the given
+     *         tolerance
+     */
+    public int getRank(double tolerance)
+    {
+        double total = 0;
+        for (double sigma : singularValues)
+            total += sigma * sigma;
+        
+        // a tolerance of 0 still allows for rounding errors of the decomposition itself
+        double maxResidual = Math.max(tolerance * tolerance, 1e-20) * total;
+        
+        // residual of the first "rank" terms: sum of the remaining squared singular values
+        double residual = 0;
+        int rank = singularValues.length;
+        
+        while (rank > 0 && residual + singularValues[rank - 1] * singularValues[rank - 1] <= maxResidual)
+        {
+            rank--;
+            residual += singularValues[rank] * singularValues[rank];
+        }
+        
+        return rank;
+    }
+    
+    /**
+     * @return the singular values of the kernel, in decreasing order
+     */
+    public double[] getSingularValues()
+    {
+        return singularValues.clone();
+    }
+    
+    /**
+     * @param rank
+     *            the number of terms
+     * @return the kernels along X of the given number of terms (with the largest singular values)
+     */
+    public double[][] getKernelsX(int rank)
+    {
+        return Arrays.copyOf(kernelsX, rank);
+    }
+    
+    /**
+     * @param rank
+     *            the number of terms
+     * @return the kernels along Y of the given number of terms (with the largest singular values)
+     */
+    public double[][] getKernelsY(int rank)
+    {
+        return Arrays.copyOf(kernelsY, rank);
+    }
+    
+    /**
+     * @param rank
+     *            the number of terms
+     * @return true if convolving with the given number of separable terms requires fewer
+     *         multiplications per pixel than a direct 2D convolution
+     */
+    public boolean isFasterThanDirect(int rank)
+    {
+        return rank * (width + height) < width * height;
+    }
+}
@@ -0,0 +1,354 @@
+package plugins.adufour.filtering;
+
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Separable minimum / maximum filters using the van Herk / Gil-Werman algorithm. Along each axis,
+ * the data is split into blocks of the window size, in which prefix and suffix maxima are computed,
+ * such that the maximum of any window is obtained by a single comparison. The cost is about 3
+ * comparisons per pixel and per axis, regardless of the filter radius. Along Y and Z, blocks of
+ * {@link #LANES} adjacent columns are filtered together, such that each image line is read by
+ * contiguous runs instead of one value per cache line.<br>
+ * The stack is filtered by bands of lines, each band sweeping all slices, and the data is read and
+ * written in its own type, such that no copy of the whole stack is made. All data types are
+ * filtered by the same (double precision) scan, which is exact since the result is one of the
+ * input values.<br>
+ * As in {@link SelectionFilter#filterSquare(icy.sequence.Sequence, int...)}, the neighborhood is
+ * clipped at the image borders.
+ */
+public class SeparableMinMax
+{
+    /**
+     * Number of adjacent columns filtered together along Y and Z
+     */
+    static final int LANES = 16;
+    
+    /**
+     * Low-level 3D maximum filter. <br>
+     * Warning: this is a low-level method. No check is performed on the input arguments, and the
+     * method may return successfully though with incorrect results. Make sure your arguments follow
+     * the indicated constraints.
+     * 
+     * @param service
+     *            the service used to process the data in parallel
+     * @param input
+     *            the input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+     * @param output
+     *            the output data buffer, given as a [Z (slice)][XY (1D offset)] double array (must
+     *            point to a different array than the input)
+     * @param width
+     *            the image width
+     * @param height
+     *            the image height
+     * @param radiusX
+     *            the neighborhood radius along X
+     * @param radiusY
+     *            the neighborhood radius along Y
+     * @param radiusZ
+     *            the neighborhood radius along Z
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public static void max(ExecutorService service, double[][] input, double[][] output, int width, int height, int radiusX, int radiusY, int radiusZ)
+            throws InterruptedException, ExecutionException
+    {
+        filter(service, input, output, DataType.DOUBLE, width, height, radiusX, radiusY, radiusZ, false, null);
+    }
+    
+    /**
+     * Low-level 3D minimum filter. <br>
+     * Warning: this is a low-level method. No check is performed on the input arguments, and the
+     * method may return successfully though with incorrect results. Make sure your arguments follow
+     * the indicated constraints.
+     * 
+     * @param service
+     *            the service used to process the data in parallel
+     * @param input
+     *            the input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+     * @param output
+     *            the output data buffer, given as a [Z (slice)][XY (1D offset)] double array (must
+     *            point to a different array than the input)
+     * @param width
+     *            the image width
+     * @param height
+     *            the image height
+     * @param radiusX
+     *            the neighborhood radius along X
+     * @param radiusY
+     *            the neighborhood radius along Y
+     * @param radiusZ
+     *            the neighborhood radius along Z
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public static void min(ExecutorService service, double[][] input, double[][] output, int width, int height, int radiusX, int radiusY, int radiusZ)
+            throws InterruptedException, ExecutionException
+    {
+        filter(service, input, output, DataType.DOUBLE, width, height, radiusX, radiusY, radiusZ, true, null);
+    }
+    
+    /**
+     * Maximum (or minimum) filter of a stack of any data type, by bands of lines (see
+     * {@link SelectionFilter#getBandHeight(int, int)})
+     * 
+     * @param in_Z_XY
+     *            the input data, given as a [Z (slice)][XY (1D offset)] array of the specified type
+     * @param out_Z_XY
+     *            the output data, given as a [Z (slice)][XY (1D offset)] array of the specified type
+     *            (must point to different arrays than the input)
+     * @param type
+     *            the data type of the input and output arrays
+     * @param min
+     *            true to compute the minimum instead of the maximum
+     * @param monitor
+     *            the monitor to check for cancellation and to report the filtered lines to (or
+     *            null)
+     */
+    static void filter(ExecutorService service, final Object[] in_Z_XY, final Object[] out_Z_XY, final DataType type, final int width, final int height,
+            final int radiusX, final int radiusY, final int radiusZ, final boolean min, final TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        TaskPipeline pipeline = new TaskPipeline(service, Integer.MAX_VALUE, monitor);
+        
+        submit(pipeline, in_Z_XY, out_Z_XY, type, width, height, radiusX, radiusY, radiusZ, min, monitor);
+        
+        pipeline.await();
+    }
+    
+    /**
+     * Submits the tasks of
+     * {@link #filter(ExecutorService, Object[], Object[], DataType, int, int, int, int, int, boolean, TaskMonitor)}
+     * to the given pipeline (one task per band of lines), without waiting for them to complete
+     * 
+     * @param pipeline
+     *            the pipeline running the tasks
+     * @throws InterruptedException
+     * @throws ExecutionException
+     *             if one of the tasks awaited by the pipeline has failed
+     */
+    static void submit(TaskPipeline pipeline, final Object[] in_Z_XY, final Object[] out_Z_XY, final DataType type, final int width, final int height,
+            final int radiusX, final int radiusY, final int radiusZ, final boolean min, final TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        final int bandHeight = SelectionFilter.getBandHeight(height, radiusY);
+        
+        for (int y = 0; y < height; y += bandHeight)
+        {
+            final int minY = y;
+            final int maxY = Math.min(y + bandHeight, height);
+            
+            pipeline.submit(new Runnable()
+            {
+                public void run()
+                {
+                    filterBand(in_Z_XY, out_Z_XY, type, width, height, minY, maxY, radiusX, radiusY, radiusZ, min, monitor);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Filters a band of lines through all the slices of the stack. The maximum along X and Y of
+     * each slice of the band is computed from the band and its halo along Y, and stored in the
+     * output (this is exact, since it is one of the input values). The maximum along Z is then
+     * computed in place in the output, by blocks of adjacent columns.<br>
+     * The minimum is computed as min(a, b) = -max(-a, -b): values are negated whenever they are
+     * read, and negated back whenever they are written.
+     * 
+     * @param minY
+     *            the first line of the band
+     * @param maxY
+     *            the line after the last line of the band
+     * @param min
+     *            true to compute the minimum instead of the maximum
+     * @param monitor
+     *            the monitor to check for cancellation and to report the filtered lines to (or
+     *            null)
+     */
+    static void filterBand(Object[] in_Z_XY, Object[] out_Z_XY, DataType type, int width, int height, int minY, int maxY, int radiusX, int radiusY, int radiusZ,
+            boolean min, TaskMonitor monitor)
+    {
+        final int depth = in_Z_XY.length;
+        final boolean signed = type.isSigned();
+        
+        // the band and its halo along Y
+        final int haloMinY = Math.max(minY - radiusY, 0);
+        final int haloMaxY = Math.min(maxY + radiusY, height);
+        final int haloHeight = haloMaxY - haloMinY;
+        
+        Line lineX = new Line(width, radiusX, 1);
+        Line lineY = new Line(haloHeight, radiusY, LANES);
+        
+        // the halo band filtered along X
+        double[] band = new double[haloHeight * width];
+        
+        // the lines of the band are only done after the pass along Z (if any)
+        final boolean filterZ = radiusZ > 0 && depth > 1;
+        
+        for (int z = 0; z < depth; z++)
+        {
+            if (monitor != null && monitor.isCancelled()) return;
+            
+            Object in_XY = in_Z_XY[z];
+            Object out_XY = out_Z_XY[z];
+            
+            // along X
+            for (int y = haloMinY, offset = 0; y < haloMaxY; y++, offset += width)
+            {
+                read(in_XY, y * width, lineX.in, 0, width, type, min);
+                lineX.max(width, radiusX, 1);
+                System.arraycopy(lineX.out, 0, band, offset, width);
+            }
+            
+            // along Y, by blocks of adjacent columns
+            for (int x = 0; x < width; x += LANES)
+            {
+                final int lanes = Math.min(LANES, width - x);
+                
+                for (int y = 0, xy = x; y < haloHeight; y++, xy += width)
+                    System.arraycopy(band, xy, lineY.in, y * lanes, lanes);
+                lineY.max(haloHeight, radiusY, lanes);
+                for (int y = minY; y < maxY; y++)
+                    write(lineY.out, (y - haloMinY) * lanes, out_XY, y * width + x, lanes, signed, min);
+            }
+            
+            if (!filterZ && monitor != null) monitor.add(maxY - minY);
+        }
+        
+        if (!filterZ) return;
+        
+        // along Z (in place), by blocks of adjacent columns
+        
+        Line lineZ = new Line(depth, radiusZ, LANES);
+        
+        for (int y = minY; y < maxY; y++)
+        {
+            if (monitor != null && monitor.isCancelled()) return;
+            
+            for (int x = 0; x < width; x += LANES)
+            {
+                final int lanes = Math.min(LANES, width - x);
+                final int xy = y * width + x;
+                
+                for (int z = 0; z < depth; z++)
+                    read(out_Z_XY[z], xy, lineZ.in, z * lanes, lanes, type, min);
+                lineZ.max(depth, radiusZ, lanes);
+                for (int z = 0; z < depth; z++)
+                    write(lineZ.out, z * lanes, out_Z_XY[z], xy, lanes, signed, min);
+            }
+            
+            if (monitor != null) monitor.add(depth);
+        }
+    }
+    
+    /**
+     * Copies (and optionally negates) a run of values from an array of the given type into a double
+     * buffer
+     */
+    private static void read(Object array, int offset, double[] buffer, int bufferOffset, int length, DataType type, boolean negate)
+    {
+        SelectionFilter.gather(array, offset, buffer, bufferOffset, length, type);
+        
+        if (negate) for (int i = bufferOffset; i < bufferOffset + length; i++)
+            buffer[i] = -buffer[i];
+    }
+    
+    /**
+     * Copies (and optionally negates) a run of values from a double buffer into an array (the
+     * values are exact in the array type, since they have been read from an array of this type)
+     */
+    private static void write(double[] buffer, int bufferOffset, Object array, int offset, int length, boolean signed, boolean negate)
+    {
+        if (negate) for (int i = bufferOffset; i < bufferOffset + length; i++)
+            buffer[i] = -buffer[i];
+        
+        Array1DUtil.doubleArrayToSafeArray(buffer, bufferOffset, array, offset, length, signed);
+    }
+    
+    /**
+     * Working buffers for the 1D van Herk / Gil-Werman maximum of several interleaved lines (lanes),
+     * element i of lane l being stored at <code>i * lanes + l</code>
+     */
+    private static class Line
+    {
+        final double[] in, out;
+        
+        /**
+         * Padded input, prefix and suffix maxima
+         */
+        final double[] padded, prefix, suffix;
+        
+        Line(int maxLength, int maxRadius, int maxLanes)
+        {
+            in = new double[maxLength * maxLanes];
+            out = new double[maxLength * maxLanes];
+            
+            // worst case: padding on each side + rounding to a multiple of the window size
+            int size = (maxLength + 4 * maxRadius + 1) * maxLanes;
+            padded = new double[size];
+            prefix = new double[size];
+            suffix = new double[size];
+        }
+        
+        /**
+         * Computes the running maximum of the first elements of each lane of {@link #in} into
+         * {@link #out}
+         * 
+         * @param length
+         *            the number of elements to process in each lane
+         * @param radius
+         *            the neighborhood radius
+         * @param lanes
+         *            the number of interleaved lanes
+         */
+        void max(int length, int radius, int lanes)
+        {
+            if (radius == 0 || length == 1)
+            {
+                System.arraycopy(in, 0, out, 0, length * lanes);
+                return;
+            }
+            
+            final int window = 2 * radius + 1;
+            final int size = ((length + 2 * radius + window - 1) / window) * window;
+            
+            // pad with -infinity on both sides (=> clipped neighborhood)
+            
+            Arrays.fill(padded, 0, radius * lanes, Double.NEGATIVE_INFINITY);
+            System.arraycopy(in, 0, padded, radius * lanes, length * lanes);
+            Arrays.fill(padded, (radius + length) * lanes, size * lanes, Double.NEGATIVE_INFINITY);
+            
+            // prefix and suffix maxima within each block
+            
+            for (int start = 0; start < size; start += window)
+            {
+                int end = start + window - 1;
+                
+                System.arraycopy(padded, start * lanes, prefix, start * lanes, lanes);
+                for (int i = (start + 1) * lanes; i < (end + 1) * lanes; i++)
+                {
+                    double d = padded[i], max = prefix[i - lanes];
+                    prefix[i] = d > max ? d : max;
+                }
+                
+                System.arraycopy(padded, end * lanes, suffix, end * lanes, lanes);
+                for (int i = end * lanes - 1; i >= start * lanes; i--)
+                {
+                    double d = padded[i], max = suffix[i + lanes];
+                    suffix[i] = d > max ? d : max;
+                }
+            }
+            
+            // the window [i, i + 2r] spans at most two blocks
+            
+            for (int i = 0, j = 2 * radius * lanes; i < length * lanes; i++, j++)
+            {
+                double s = suffix[i], p = prefix[j];
+                out[i] = s > p ? s : p;
+            }
+        }
+    }
+}
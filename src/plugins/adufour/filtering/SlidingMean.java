@@ -0,0 +1,282 @@
+package plugins.adufour.filtering;
+
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Sliding-window implementation of the mean filter. The neighborhood sum is computed separably
+ * along X, Y and Z by adding the value entering the window and removing the value leaving it, such
+ * that the cost per pixel does not depend on the filter radius. As in
+ * {@link SelectionFilter#filterSquare(icy.sequence.Sequence, int...)}, the neighborhood is clipped
+ * at the image borders.<br>
+ * The stack is filtered by bands of lines (see {@link SelectionFilter#getBandHeight(int, int)}),
+ * each band sweeping all slices: the sums along X and Y of each slice of the band are kept in a
+ * ring of 2*radiusZ+1 slabs, from which the running sum along Z is updated. Thus no copy of the
+ * whole stack is made, and the data is read and written in its own type.<br>
+ * Sums are only divided by the neighborhood size in the last pass, therefore results on integer
+ * data are identical to a direct summation.
+ */
+public class SlidingMean
+{
+    /**
+     * Low-level 3D sliding mean. <br>
+     * Warning: this is a low-level method. No check is performed on the input arguments, and the
+     * method may return successfully though with incorrect results. Make sure your arguments follow
+     * the indicated constraints.
+     * 
+     * @param service
+     *            the service used to process the data in parallel
+     * @param input
+     *            the input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+     * @param output
+     *            the output data buffer, given as a [Z (slice)][XY (1D offset)] double array (must
+     *            point to a different array than the input)
+     * @param width
+     *            the image width
+     * @param height
+     *            the image height
+     * @param radiusX
+     *            the neighborhood radius along X
+     * @param radiusY
+     *            the neighborhood radius along Y
+     * @param radiusZ
+     *            the neighborhood radius along Z
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public static void filter(ExecutorService service, double[][] input, double[][] output, int width, int height, int radiusX, int radiusY, int radiusZ)
+            throws InterruptedException, ExecutionException
+    {
+        filter(service, input, output, DataType.DOUBLE, width, height, radiusX, radiusY, radiusZ, null);
+    }
+    
+    /**
+     * Same as {@link #filter(ExecutorService, double[][], double[][], int, int, int, int, int)},
+     * for input and output data of any type (the output is clamped to its type)
+     * 
+     * @param in_Z_XY
+     *            the input data, given as a [Z (slice)][XY (1D offset)] array of the specified type
+     * @param out_Z_XY
+     *            the output data, given as a [Z (slice)][XY (1D offset)] array of the specified type
+     * @param type
+     *            the data type of the input and output arrays
+     * @param monitor
+     *            the monitor to check for cancellation and to report the filtered lines to (or
+     *            null)
+     */
+    static void filter(ExecutorService service, final Object[] in_Z_XY, final Object[] out_Z_XY, final DataType type, final int width, final int height,
+            final int radiusX, final int radiusY, final int radiusZ, final TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        TaskPipeline pipeline = new TaskPipeline(service, Integer.MAX_VALUE, monitor);
+        
+        submit(pipeline, in_Z_XY, out_Z_XY, type, width, height, radiusX, radiusY, radiusZ, monitor);
+        
+        pipeline.await();
+    }
+    
+    /**
+     * Submits the tasks of
+     * {@link #filter(ExecutorService, Object[], Object[], DataType, int, int, int, int, int, TaskMonitor)}
+     * to the given pipeline (one task per band of lines), without waiting for them to complete
+     * 
+     * @param pipeline
+     *            the pipeline running the tasks
+     * @throws InterruptedException
+     * @throws ExecutionException
+     *             if one of the tasks awaited by the pipeline has failed
+     */
+    static void submit(TaskPipeline pipeline, final Object[] in_Z_XY, final Object[] out_Z_XY, final DataType type, final int width, final int height,
+            final int radiusX, final int radiusY, final int radiusZ, final TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        final int bandHeight = SelectionFilter.getBandHeight(height, radiusY);
+        
+        for (int y = 0; y < height; y += bandHeight)
+        {
+            final int minY = y;
+            final int maxY = Math.min(y + bandHeight, height);
+            
+            pipeline.submit(new Runnable()
+            {
+                public void run()
+                {
+                    filterBand(in_Z_XY, out_Z_XY, type, width, height, minY, maxY, radiusX, radiusY, radiusZ, monitor);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Filters a band of lines through all the slices of the stack
+     * 
+     * @param minY
+     *            the first line of the band
+     * @param maxY
+     *            the line after the last line of the band
+     * @param monitor
+     *            the monitor to check for cancellation and to report the filtered lines to (or
+     *            null)
+     */
+    static void filterBand(Object[] in_Z_XY, Object[] out_Z_XY, DataType type, int width, int height, int minY, int maxY, int radiusX, int radiusY, int radiusZ,
+            TaskMonitor monitor)
+    {
+        final int depth = in_Z_XY.length;
+        final int bandHeight = maxY - minY;
+        final boolean signed = type.isSigned();
+        
+        final int[] countX = count(width, radiusX);
+        final int[] countY = count(height, radiusY);
+        final int[] countZ = count(depth, radiusZ);
+        
+        double[] line = new double[width];
+        
+        // lines summed along X, by line modulo the size of the ring
+        double[][] ringY = new double[Math.min(2 * radiusY + 1, height)][width];
+        
+        // slices of the band summed along X and Y, by slice modulo the size of the ring
+        double[][] ringZ = new double[Math.min(2 * radiusZ + 1, depth)][bandHeight * width];
+        
+        double[] sumZ = new double[bandHeight * width];
+        
+        for (int z = 0, last = Math.min(radiusZ, depth - 1); z <= last; z++)
+        {
+            double[] slab = ringZ[z % ringZ.length];
+            sumXY(in_Z_XY[z], type, slab, line, ringY, width, height, minY, maxY, radiusX, radiusY);
+            add(sumZ, 0, slab);
+        }
+        
+        for (int z = 0; z < depth; z++)
+        {
+            if (monitor != null && monitor.isCancelled()) return;
+            
+            Object out_XY = out_Z_XY[z];
+            
+            for (int y = minY, offset = 0; y < maxY; y++, offset += width)
+            {
+                int countYZ = countY[y] * countZ[z];
+                
+                for (int x = 0; x < width; x++)
+                    line[x] = sumZ[offset + x] / (countX[x] * countYZ);
+                
+                Array1DUtil.doubleArrayToSafeArray(line, 0, out_XY, y * width, width, signed);
+            }
+            
+            if (monitor != null) monitor.add(bandHeight);
+            
+            // the slice leaving the window frees its slot of the ring for the entering one
+            
+            int leave = z - radiusZ;
+            if (leave >= 0) subtract(sumZ, 0, ringZ[leave % ringZ.length]);
+            
+            int enter = z + radiusZ + 1;
+            if (enter < depth)
+            {
+                double[] slab = ringZ[enter % ringZ.length];
+                sumXY(in_Z_XY[enter], type, slab, line, ringY, width, height, minY, maxY, radiusX, radiusY);
+                add(sumZ, 0, slab);
+            }
+        }
+    }
+    
+    /**
+     * @param length
+     *            the number of elements along a given axis
+     * @param radius
+     *            the neighborhood radius along this axis
+     * @return the number of elements in the (clipped) neighborhood of each position along the axis
+     */
+    static int[] count(int length, int radius)
+    {
+        int[] count = new int[length];
+        
+        for (int i = 0; i < length; i++)
+            count[i] = Math.min(i + radius, length - 1) - Math.max(i - radius, 0) + 1;
+        
+        return count;
+    }
+    
+    /**
+     * Adds the given values to the sums starting at the specified offset
+     */
+    private static void add(double[] sum, int offset, double[] values)
+    {
+        for (int i = 0; i < values.length; i++)
+            sum[offset + i] += values[i];
+    }
+    
+    /**
+     * Subtracts the given values from the sums starting at the specified offset
+     */
+    private static void subtract(double[] sum, int offset, double[] values)
+    {
+        for (int i = 0; i < values.length; i++)
+            sum[offset + i] -= values[i];
+    }
+    
+    /**
+     * Sums a band of a slice along X and Y into the given slab. The running sum along Y is computed
+     * on entire lines at once for optimal memory access, from a ring of lines summed along X (the
+     * line leaving the window frees its slot for the entering one)
+     */
+    private static void sumXY(Object in_XY, DataType type, double[] slab, double[] line, double[][] ringY, int width, int height, int minY, int maxY, int radiusX,
+            int radiusY)
+    {
+        final int ring = ringY.length;
+        
+        // window of the first line of the band
+        
+        Arrays.fill(slab, 0, width, 0.0);
+        
+        for (int y = Math.max(minY - radiusY, 0), last = Math.min(minY + radiusY, height - 1); y <= last; y++)
+        {
+            double[] sumX = ringY[y % ring];
+            sumX(in_XY, type, y * width, line, sumX, width, radiusX);
+            add(slab, 0, sumX);
+        }
+        
+        // window of each next line, from the window of the previous line
+        
+        for (int y = minY + 1, offset = width; y < maxY; y++, offset += width)
+        {
+            System.arraycopy(slab, offset - width, slab, offset, width);
+            
+            int leave = y - radiusY - 1;
+            if (leave >= 0) subtract(slab, offset, ringY[leave % ring]);
+            
+            int enter = y + radiusY;
+            if (enter < height)
+            {
+                double[] sumX = ringY[enter % ring];
+                sumX(in_XY, type, enter * width, line, sumX, width, radiusX);
+                add(slab, offset, sumX);
+            }
+        }
+    }
+    
+    /**
+     * Running sum along a single image line
+     */
+    private static void sumX(Object in_XY, DataType type, int offset, double[] in, double[] out, int width, int radius)
+    {
+        SelectionFilter.gather(in_XY, offset, in, 0, width, type);
+        
+        double sum = 0;
+        
+        for (int i = 0, last = Math.min(radius, width - 1); i <= last; i++)
+            sum += in[i];
+        
+        for (int i = 0; i < width; i++)
+        {
+            out[i] = sum;
+            
+            int enter = i + radius + 1;
+            if (enter < width) sum += in[enter];
+            
+            int leave = i - radius;
+            if (leave >= 0) sum -= in[leave];
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package plugins.adufour.filtering;
+
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Sliding-window rank filter (median or percentile) for data of any type. The neighborhood of each
+ * pixel is kept in a {@link SortedWindow}, which is updated along each image line by inserting the
+ * entering column of the neighborhood and removing the leaving one. Each step therefore costs
+ * O(r log r) in 2D (O(r<sup>2</sup> log r) in 3D), instead of gathering and partially sorting the
+ * entire neighborhood.<br>
+ * The stack is filtered by bands of lines (see {@link SelectionFilter#getBandHeight(int, int)}),
+ * each band sweeping all slices, and the data is read and written in its own type: no copy of the
+ * whole stack is made.
+ */
+public class SlidingRank
+{
+    /**
+     * Low-level 3D median filter, with the same median convention as
+     * {@link Median#process(double, double[], int)}. <br>
+     * Warning: this is a low-level method. No check is performed on the input arguments, and the
+     * method may return successfully though with incorrect results. Make sure your arguments follow
+     * the indicated constraints.
+     * 
+     * @param service
+     *            the service used to process the data in parallel
+     * @param input
+     *            the input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+     * @param output
+     *            the output data buffer, given as a [Z (slice)][XY (1D offset)] double array (must
+     *            point to a different array than the input)
+     * @param width
+     *            the image width
+     * @param height
+     *            the image height
+     * @param radiusX
+     *            the neighborhood radius along X
+     * @param radiusY
+     *            the neighborhood radius along Y
+     * @param radiusZ
+     *            the neighborhood radius along Z
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public static void median(ExecutorService service, double[][] input, double[][] output, int width, int height, int radiusX, int radiusY, int radiusZ)
+            throws InterruptedException, ExecutionException
+    {
+        filter(service, input, output, DataType.DOUBLE, width, height, radiusX, radiusY, radiusZ, -1, null);
+    }
+    
+    /**
+     * Low-level 3D percentile filter (using the nearest-rank definition). <br>
+     * Warning: this is a low-level method. No check is performed on the input arguments, and the
+     * method may return successfully though with incorrect results. Make sure your arguments follow
+     * the indicated constraints.
+     * 
+     * @param service
+     *            the service used to process the data in parallel
+     * @param input
+     *            the input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+     * @param output
+     *            the output data buffer, given as a [Z (slice)][XY (1D offset)] double array (must
+     *            point to a different array than the input)
+     * @param width
+     *            the image width
+     * @param height
+     *            the image height
+     * @param radiusX
+     *            the neighborhood radius along X
+     * @param radiusY
+     *            the neighborhood radius along Y
+     * @param radiusZ
+     *            the neighborhood radius along Z
+     * @param percentile
+     *            the percentile to compute in each neighborhood (from 0 to 100)
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public static void percentile(ExecutorService service, double[][] input, double[][] output, int width, int height, int radiusX, int radiusY, int radiusZ, double percentile)
+            throws InterruptedException, ExecutionException
+    {
+        if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        
+        filter(service, input, output, DataType.DOUBLE, width, height, radiusX, radiusY, radiusZ, percentile, null);
+    }
+    
+    /**
+     * Same as {@link #median(ExecutorService, double[][], double[][], int, int, int, int, int)}
+     * and
+     * {@link #percentile(ExecutorService, double[][], double[][], int, int, int, int, int, double)}
+     * , for input and output data of any type (the output is clamped to its type)
+     * 
+     * @param in_Z_XY
+     *            the input data, given as a [Z (slice)][XY (1D offset)] array of the specified type
+     * @param out_Z_XY
+     *            the output data, given as a [Z (slice)][XY (1D offset)] array of the specified type
+     *            (must point to different arrays than the input)
+     * @param type
+     *            the data type of the input and output arrays
+     * @param percentile
+     *            the percentile to compute, or a negative value to compute the median
+     * @param monitor
+     *            the monitor to check for cancellation and to report the filtered lines to (or
+     *            null)
+     */
+    static void filter(ExecutorService service, final Object[] in_Z_XY, final Object[] out_Z_XY, final DataType type, final int width, final int height,
+            final int radiusX, final int radiusY, final int radiusZ, final double percentile, final TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        TaskPipeline pipeline = new TaskPipeline(service, Integer.MAX_VALUE, monitor);
+        
+        submit(pipeline, in_Z_XY, out_Z_XY, type, width, height, radiusX, radiusY, radiusZ, percentile, monitor);
+        
+        pipeline.await();
+    }
+    
+    /**
+     * Submits the tasks of
+     * {@link #filter(ExecutorService, Object[], Object[], DataType, int, int, int, int, int, double, TaskMonitor)}
+     * to the given pipeline (one task per band of lines), without waiting for them to complete
+     * 
+     * @param pipeline
+     *            the pipeline running the tasks
+     * @throws InterruptedException
+     * @throws ExecutionException
+     *             if one of the tasks awaited by the pipeline has failed
+     */
+    static void submit(TaskPipeline pipeline, final Object[] in_Z_XY, final Object[] out_Z_XY, final DataType type, final int width, final int height,
+            final int radiusX, final int radiusY, final int radiusZ, final double percentile, final TaskMonitor monitor) throws InterruptedException, ExecutionException
+    {
+        final int bandHeight = SelectionFilter.getBandHeight(height, radiusY);
+        
+        for (int y = 0; y < height; y += bandHeight)
+        {
+            final int minY = y;
+            final int maxY = Math.min(y + bandHeight, height);
+            
+            pipeline.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    filterBand(in_Z_XY, out_Z_XY, type, width, height, minY, maxY, radiusX, radiusY, radiusZ, percentile, monitor);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Filters a band of lines through all the slices of the stack. The lines of the neighborhood are
+     * converted to double precision once, and kept in a ring of 2*radiusY+1 lines per slice (the
+     * line leaving the neighborhood frees its slot for the entering one)
+     * 
+     * @param minY
+     *            the first line of the band
+     * @param maxY
+     *            the line after the last line of the band
+     * @param percentile
+     *            the percentile to compute, or a negative value to compute the median
+     * @param monitor
+     *            the monitor to check for cancellation and to report the filtered lines to (or
+     *            null)
+     */
+    static void filterBand(Object[] in_Z_XY, Object[] out_Z_XY, DataType type, int width, int height, int minY, int maxY, int radiusX, int radiusY, int radiusZ,
+            double percentile, TaskMonitor monitor)
+    {
+        final int depth = in_Z_XY.length;
+        final boolean signed = type.isSigned();
+        
+        final int ringSize = Math.min(2 * radiusY + 1, height);
+        
+        // lines of the neighborhood, by slice (relative to the first slice of the neighborhood) and
+        // by line modulo the size of the ring
+        final double[][] lines = new double[Math.min(2 * radiusZ + 1, depth) * ringSize][width];
+        
+        final double[] out = new double[width];
+        
+        SortedWindow window = new SortedWindow(Math.min(2 * radiusX + 1, width) * ringSize * Math.min(2 * radiusZ + 1, depth));
+        
+        for (int z = 0; z < depth; z++)
+        {
+            final int minZ = Math.max(z - radiusZ, 0);
+            final int maxZ = Math.min(z + radiusZ + 1, depth);
+            
+            for (int line = minY; line < maxY; line++)
+            {
+                // this filter is slow: stop between two lines if the pass was cancelled
+                if (monitor != null && monitor.isCancelled()) return;
+                
+                int minYw = Math.max(line - radiusY, 0);
+                int maxYw = Math.min(line + radiusY + 1, height);
+                
+                // read the whole neighborhood for the first line, then only the entering line
+                for (int k = minZ; k < maxZ; k++)
+                    for (int y = line == minY ? minYw : maxYw - 1; y < maxYw; y++)
+                        SelectionFilter.gather(in_Z_XY[k], y * width, lines[(k - minZ) * ringSize + y % ringSize], 0, width, type);
+                
+                window.clear();
+                
+                int maxX = Math.min(radiusX + 1, width);
+                for (int x = 0; x < maxX; x++)
+                    insertColumn(window, lines, x, minYw, maxYw, maxZ - minZ, ringSize);
+                
+                for (int x = 0; x < width; x++)
+                {
+                    int n = window.size();
+                    
+                    out[x] = window.select(percentile < 0 ? Median.rank(n) : SortedWindow.percentileRank(n, percentile));
+                    
+                    // slide the window
+                    
+                    if (x - radiusX >= 0) removeColumn(window, lines, x - radiusX, minYw, maxYw, maxZ - minZ, ringSize);
+                    
+                    if (maxX < width) insertColumn(window, lines, maxX++, minYw, maxYw, maxZ - minZ, ringSize);
+                }
+                
+                Array1DUtil.doubleArrayToSafeArray(out, 0, out_Z_XY[z], line * width, width, signed);
+                
+                if (monitor != null) monitor.add(1);
+            }
+        }
+    }
+    
+    private static void insertColumn(SortedWindow window, double[][] lines, int x, int minY, int maxY, int nbSlices, int ringSize)
+    {
+        for (int k = 0; k < nbSlices; k++)
+            for (int y = minY; y < maxY; y++)
+                window.insert(lines[k * ringSize + y % ringSize][x]);
+    }
+    
+    private static void removeColumn(SortedWindow window, double[][] lines, int x, int minY, int maxY, int nbSlices, int ringSize)
+    {
+        for (int k = 0; k < nbSlices; k++)
+            for (int y = minY; y < maxY; y++)
+                window.remove(lines[k * ringSize + y % ringSize][x]);
+    }
+}
@@ -0,0 +1,278 @@
+package plugins.adufour.filtering;
+
+/**
+ * Indexable sorted multi-set of double values (order-statistic tree), designed to maintain a
+ * sliding neighborhood. Values are stored in a randomized binary search tree (treap) where each
+ * node knows the size of its sub-tree, such that insertions, removals and rank queries (k-th
+ * smallest value, median, percentiles) all run in O(log n) expected time.<br>
+ * Nodes are pre-allocated at construction, so that no memory is allocated while the window slides.
+ * Values are ordered as in {@link Double#compare(double, double)}.
+ */
+public class SortedWindow
+{
+    /**
+     * Index of the empty (null) node
+     */
+    private static final int NIL = 0;
+    
+    private final double[]   key;
+    
+    private final int[]      left;
+    
+    private final int[]      right;
+    
+    private final int[]      size;
+    
+    private final int[]      priority;
+    
+    /**
+     * Stack of unused nodes
+     */
+    private final int[]      free;
+    
+    private int              nbFree;
+    
+    private int              root     = NIL;
+    
+    private int              seed     = 0x2545F491;
+    
+    /**
+     * Flag used to report whether the last removal found the value
+     */
+    private boolean          removed;
+    
+    /**
+     * Creates a new empty window
+     * 
+     * @param capacity
+     *            the maximum number of values that can be stored in the window at once
+     */
+    public SortedWindow(int capacity)
+    {
+        key = new double[capacity + 1];
+        left = new int[capacity + 1];
+        right = new int[capacity + 1];
+        size = new int[capacity + 1];
+        priority = new int[capacity + 1];
+        free = new int[capacity];
+        
+        clear();
+    }
+    
+    /**
+     * Removes all values from the window
+     */
+    public void clear()
+    {
+        root = NIL;
+        nbFree = free.length;
+        for (int i = 0; i < nbFree; i++)
+            free[i] = nbFree - i;
+    }
+    
+    /**
+     * @return the number of values currently in the window
+     */
+    public int size()
+    {
+        return size[root];
+    }
+    
+    /**
+     * Adds the specified value to the window
+     * 
+     * @param value
+     *            the value to add
+     * @throws IllegalStateException
+     *             if the window is full
+     */
+    public void insert(double value)
+    {
+        if (nbFree == 0) throw new IllegalStateException("Sorted window is full (capacity: " + free.length + ")");
+        
+        int node = free[--nbFree];
+        key[node] = value;
+        left[node] = NIL;
+        right[node] = NIL;
+        size[node] = 1;
+        
+        // xorshift pseudo-random priority
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        priority[node] = seed;
+        
+        root = insert(root, node);
+    }
+    
+    /**
+     * Removes one occurrence of the specified value from the window
+     * 
+     * @param value
+     *            the value to remove
+     * @return true if the value was found (and removed), false otherwise
+     */
+    public boolean remove(double value)
+    {
+        removed = false;
+        root = remove(root, value);
+        return removed;
+    }
+    
+    /**
+     * Returns the value of given rank in the window (i.e. the k-th smallest value)
+     * 
+     * @param rank
+     *            the (0-based) rank of the value to find
+     * @return the value of given rank in the window
+     * @throws IndexOutOfBoundsException
+     *             if rank is not in [0, size()-1]
+     */
+    public double select(int rank)
+    {
+        if (rank < 0 || rank >= size[root]) throw new IndexOutOfBoundsException("Rank " + rank + " is out of the window bounds (size: " + size[root] + ")");
+        
+        int node = root;
+        
+        while (true)
+        {
+            int leftSize = size[left[node]];
+            
+            if (rank < leftSize)
+            {
+                node = left[node];
+            }
+            else if (rank == leftSize)
+            {
+                return key[node];
+            }
+            else
+            {
+                rank -= leftSize + 1;
+                node = right[node];
+            }
+        }
+    }
+    
+    /**
+     * @return the median value of the window, with the same convention as
+     *         {@link Median#process(double, double[], int)}
+     */
+    public double getMedian()
+    {
+        return select(Median.rank(size[root]));
+    }
+    
+    /**
+     * @param percentile
+     *            the wanted percentile (from 0 to 100)
+     * @return the specified percentile of the values in the window
+     */
+    public double getPercentile(double percentile)
+    {
+        return select(percentileRank(size[root], percentile));
+    }
+    
+    /**
+     * Computes the rank of a percentile using the nearest-rank definition
+     * 
+     * @param n
+     *            the number of values
+     * @param percentile
+     *            the wanted percentile (from 0 to 100)
+     * @return the (0-based) rank of the specified percentile
+     */
+    public static int percentileRank(int n, double percentile)
+    {
+        int rank = (int) Math.ceil(percentile * n / 100.0) - 1;
+        
+        return rank < 0 ? 0 : rank >= n ? n - 1 : rank;
+    }
+    
+    private int insert(int node, int newNode)
+    {
+        if (node == NIL) return newNode;
+        
+        size[node]++;
+        
+        if (Double.compare(key[newNode], key[node]) < 0)
+        {
+            left[node] = insert(left[node], newNode);
+            if (priority[left[node]] > priority[node]) node = rotateRight(node);
+        }
+        else
+        {
+            right[node] = insert(right[node], newNode);
+            if (priority[right[node]] > priority[node]) node = rotateLeft(node);
+        }
+        
+        return node;
+    }
+    
+    private int remove(int node, double value)
+    {
+        if (node == NIL) return NIL;
+        
+        int comparison = Double.compare(value, key[node]);
+        
+        if (comparison == 0)
+        {
+            removed = true;
+            free[nbFree++] = node;
+            return merge(left[node], right[node]);
+        }
+        
+        if (comparison < 0)
+        {
+            left[node] = remove(left[node], value);
+        }
+        else
+        {
+            right[node] = remove(right[node], value);
+        }
+        
+        if (removed) size[node]--;
+        
+        return node;
+    }
+    
+    /**
+     * Merges two sub-trees, assuming all values of the first are lower than those of the second
+     */
+    private int merge(int a, int b)
+    {
+        if (a == NIL) return b;
+        if (b == NIL) return a;
+        
+        if (priority[a] > priority[b])
+        {
+            size[a] += size[b];
+            right[a] = merge(right[a], b);
+            return a;
+        }
+        
+        size[b] += size[a];
+        left[b] = merge(a, left[b]);
+        return b;
+    }
+    
+    private int rotateRight(int node)
+    {
+        int pivot = left[node];
+        left[node] = right[pivot];
+        right[pivot] = node;
+        size[pivot] = size[node];
+        size[node] = size[left[node]] + size[right[node]] + 1;
+        return pivot;
+    }
+    
+    private int rotateLeft(int node)
+    {
+        int pivot = right[node];
+        right[node] = left[pivot];
+        left[pivot] = node;
+        size[pivot] = size[node];
+        size[node] = size[left[node]] + size[right[node]] + 1;
+        return pivot;
+    }
+}
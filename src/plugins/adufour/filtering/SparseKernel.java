@@ -0,0 +1,327 @@
+package plugins.adufour.filtering;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Sparse form of a convolution kernel, used by the direct convolution (see {@link Convolution}).
+ * Zero taps are dropped, and the remaining taps are grouped by identical weight, such that each
+ * pass over an output line accumulates two taps with a single multiplication. Many kernels benefit
+ * from it: the Laplacian and Kirsch kernels have zero taps, symmetric kernels (e.g. Gaussian) have
+ * groups of identical weights, and custom kernels are often mostly zeros.
+ */
+final class SparseKernel
+{
+    /**
+     * Minimum fraction of passes saved w.r.t. the dense kernel (one pass per tap) to use the
+     * sparse form
+     */
+    static final double SPARSITY_THRESHOLD = 0.25;
+    
+    /**
+     * Distinct non-zero weights
+     */
+    private final double[] weights;
+    
+    /**
+     * Slice of each tap of each group (relative to the first slice of the padded kernel window)
+     */
+    private final int[][]  slices;
+    
+    /**
+     * Offset of each tap of each group in its padded slice (relative to the first pixel of the
+     * padded kernel window)
+     */
+    private final int[][]  offsets;
+    
+    /**
+     * Width of the padded input slices
+     */
+    private final int      paddedWidth;
+    
+    /**
+     * Number of passes over an output line
+     */
+    private final int      nbPasses;
+    
+    /**
+     * Compiles the given kernel into its sparse form, regardless of its sparsity (see
+     * {@link #compile(double[][], int, int, int, int)})
+     * 
+     * @param kernel
+     *            the convolution kernel, given as a [Z (slice)][XY (1D offset)] double array of size
+     *            (2*kWidth+1) x (2*kHeight+1) x (2*kDepth+1)
+     * @param paddedWidth
+     *            the width of the padded input slices (see {@link Padding})
+     */
+    SparseKernel(double[][] kernel, int kWidth, int kHeight, int kDepth, int paddedWidth)
+    {
+        this.paddedWidth = paddedWidth;
+        
+        final int nbTaps = (2 * kWidth + 1) * (2 * kHeight + 1) * (2 * kDepth + 1);
+        
+        // group of each non-zero tap
+        HashMap<Double, Integer> groups = new HashMap<Double, Integer>();
+        double[] groupWeights = new double[nbTaps];
+        int[] groupSizes = new int[nbTaps];
+        
+        int[] tapGroups = new int[nbTaps];
+        int[] tapSlices = new int[nbTaps];
+        int[] tapOffsets = new int[nbTaps];
+        int nbNonZeroTaps = 0;
+        
+        for (int kZ = 0; kZ <= 2 * kDepth; kZ++)
+        {
+            int kXY = 0;
+            
+            for (int kY = 0; kY <= 2 * kHeight; kY++)
+                for (int kX = 0; kX <= 2 * kWidth; kX++, kXY++)
+                {
+                    double weight = kernel[kZ][kXY];
+                    
+                    if (weight == 0) continue;
+                    
+                    Integer group = groups.get(weight);
+                    
+                    if (group == null)
+                    {
+                        group = groups.size();
+                        groups.put(weight, group);
+                        groupWeights[group] = weight;
+                    }
+                    
+                    groupSizes[group]++;
+                    
+                    tapGroups[nbNonZeroTaps] = group;
+                    tapSlices[nbNonZeroTaps] = kZ;
+                    tapOffsets[nbNonZeroTaps] = kY * paddedWidth + kX;
+                    nbNonZeroTaps++;
+                }
+        }
+        
+        final int nbGroups = groups.size();
+        
+        weights = Arrays.copyOf(groupWeights, nbGroups);
+        slices = new int[nbGroups][];
+        offsets = new int[nbGroups][];
+        
+        int passes = 0;
+        
+        for (int group = 0; group < nbGroups; group++)
+        {
+            slices[group] = new int[groupSizes[group]];
+            offsets[group] = new int[groupSizes[group]];
+            
+            passes += (groupSizes[group] + 1) / 2;
+        }
+        
+        nbPasses = passes;
+        
+        // dispatch the taps to their group
+        int[] groupFill = new int[nbGroups];
+        
+        for (int tap = 0; tap < nbNonZeroTaps; tap++)
+        {
+            int group = tapGroups[tap];
+            slices[group][groupFill[group]] = tapSlices[tap];
+            offsets[group][groupFill[group]] = tapOffsets[tap];
+            groupFill[group]++;
+        }
+    }
+    
+    /**
+     * Compiles the given kernel into its sparse form
+     * 
+     * @param kernel
+     *            the convolution kernel, given as a [Z (slice)][XY (1D offset)] double array of size
+     *            (2*kWidth+1) x (2*kHeight+1) x (2*kDepth+1)
+     * @param paddedWidth
+     *            the width of the padded input slices (see {@link Padding})
+     * @return the sparse kernel, or null if it does not save at least
+     *         {@link #SPARSITY_THRESHOLD} of the passes of the dense kernel
+     */
+    static SparseKernel compile(double[][] kernel, int kWidth, int kHeight, int kDepth, int paddedWidth)
+    {
+        final int nbTaps = (2 * kWidth + 1) * (2 * kHeight + 1) * (2 * kDepth + 1);
+        
+        SparseKernel sparse = new SparseKernel(kernel, kWidth, kHeight, kDepth, paddedWidth);
+        
+        return sparse.nbPasses <= (1.0 - SPARSITY_THRESHOLD) * nbTaps ? sparse : null;
+    }
+    
+    /**
+     * @return the number of passes over each output line (i.e. the equivalent number of dense
+     *         taps)
+     */
+    int getNbPasses()
+    {
+        return nbPasses;
+    }
+    
+    /**
+     * Low-level convolution of a single image line (see
+     * {@link Convolution#convolveLine(double[][], double[], int, int, int, double[][], int, int, int)}
+     * ). <br>
+     * Warning: this is a low-level method. No check is performed on the input arguments, and the
+     * method may return successfully though with incorrect results. Make sure your arguments follow
+     * the indicated constraints.
+     * 
+     * @param input
+     *            the padded input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+     *            with a halo of the kernel radius in each dimension (and of the padded width given
+     *            when compiling the kernel)
+     * @param output
+     *            the output line buffer (of length <code>width</code>)
+     * @param width
+     *            the image width (without halo)
+     * @param slice
+     *            the slice of the line to convolve
+     * @param line
+     *            the line to convolve
+     */
+    void convolveLine(double[][] input, double[] output, int width, int slice, int line)
+    {
+        Arrays.fill(output, 0, width, 0.0);
+        
+        accumulateLine(input, output, width, slice, line);
+    }
+    
+    /**
+     * Same as {@link #convolveLine(double[][], double[], int, int, int)}, but adds the result
+     * to the values of the output buffer
+     */
+    void accumulateLine(double[][] input, double[] output, int width, int slice, int line)
+    {
+        final int lineOffset = line * paddedWidth;
+        
+        for (int group = 0; group < weights.length; group++)
+        {
+            final double weight = weights[group];
+            final int[] s = slices[group];
+            final int[] o = offsets[group];
+            
+            int tap = 0;
+            
+            // two taps per pass
+            for (; tap + 1 < s.length; tap += 2)
+            {
+                final double[] in1 = input[slice + s[tap]];
+                final double[] in2 = input[slice + s[tap + 1]];
+                final int shift1 = lineOffset + o[tap];
+                final int shift2 = lineOffset + o[tap + 1];
+                
+                for (int x = 0; x < width; x++)
+                    output[x] += weight * (in1[shift1 + x] + in2[shift2 + x]);
+            }
+            
+            if (tap < s.length)
+            {
+                final double[] in = input[slice + s[tap]];
+                final int shift = lineOffset + o[tap];
+                
+                for (int x = 0; x < width; x++)
+                    output[x] += weight * in[shift + x];
+            }
+        }
+    }
+    
+    /**
+     * Same as {@link #convolveLine(double[][], double[], int, int, int)}, in single precision
+     */
+    void convolveLine(float[][] input, float[] output, int width, int slice, int line)
+    {
+        Arrays.fill(output, 0, width, 0f);
+        
+        accumulateLine(input, output, width, slice, line);
+    }
+    
+    /**
+     * Same as {@link #accumulateLine(double[][], double[], int, int, int)}, in single
+     * precision
+     */
+    void accumulateLine(float[][] input, float[] output, int width, int slice, int line)
+    {
+        final int lineOffset = line * paddedWidth;
+        
+        for (int group = 0; group < weights.length; group++)
+        {
+            final float weight = (float) weights[group];
+            final int[] s = slices[group];
+            final int[] o = offsets[group];
+            
+            int tap = 0;
+            
+            // two taps per pass
+            for (; tap + 1 < s.length; tap += 2)
+            {
+                final float[] in1 = input[slice + s[tap]];
+                final float[] in2 = input[slice + s[tap + 1]];
+                final int shift1 = lineOffset + o[tap];
+                final int shift2 = lineOffset + o[tap + 1];
+                
+                for (int x = 0; x < width; x++)
+                    output[x] += weight * (in1[shift1 + x] + in2[shift2 + x]);
+            }
+            
+            if (tap < s.length)
+            {
+                final float[] in = input[slice + s[tap]];
+                final int shift = lineOffset + o[tap];
+                
+                for (int x = 0; x < width; x++)
+                    output[x] += weight * in[shift + x];
+            }
+        }
+    }
+    
+    /**
+     * Same as {@link #convolveLine(double[][], double[], int, int, int)}, with integer
+     * arithmetic (the weights of the kernel must be integers small enough to avoid overflows, see
+     * {@link Convolution#isIntegerExact(icy.type.DataType, double, int)})
+     */
+    void convolveLine(int[][] input, int[] output, int width, int slice, int line)
+    {
+        Arrays.fill(output, 0, width, 0);
+        
+        accumulateLine(input, output, width, slice, line);
+    }
+    
+    /**
+     * Same as {@link #accumulateLine(double[][], double[], int, int, int)}, with integer
+     * arithmetic
+     */
+    void accumulateLine(int[][] input, int[] output, int width, int slice, int line)
+    {
+        final int lineOffset = line * paddedWidth;
+        
+        for (int group = 0; group < weights.length; group++)
+        {
+            final int weight = (int) weights[group];
+            final int[] s = slices[group];
+            final int[] o = offsets[group];
+            
+            int tap = 0;
+            
+            // two taps per pass
+            for (; tap + 1 < s.length; tap += 2)
+            {
+                final int[] in1 = input[slice + s[tap]];
+                final int[] in2 = input[slice + s[tap + 1]];
+                final int shift1 = lineOffset + o[tap];
+                final int shift2 = lineOffset + o[tap + 1];
+                
+                for (int x = 0; x < width; x++)
+                    output[x] += weight * (in1[shift1 + x] + in2[shift2 + x]);
+            }
+            
+            if (tap < s.length)
+            {
+                final int[] in = input[slice + s[tap]];
+                final int shift = lineOffset + o[tap];
+                
+                for (int x = 0; x < width; x++)
+                    output[x] += weight * in[shift + x];
+            }
+        }
+    }
+}
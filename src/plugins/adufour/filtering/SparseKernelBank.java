@@ -0,0 +1,179 @@
+package plugins.adufour.filtering;
+
+import java.util.HashMap;
+
+/**
+ * A bank of convolution kernels of the same size (e.g. compass operators), evaluated together on
+ * each image line. Kernels of a bank often share most of their weights (e.g. rotations of the same
+ * kernel): the weight that is most common to the kernels at each tap forms a base kernel, whose
+ * response is computed once and shared by all kernels, and each kernel only adds the (sparse)
+ * difference to the base. For instance, each Kirsch kernel is the common ring of -3 weights plus
+ * three taps of weight 8.
+ */
+final class SparseKernelBank
+{
+    /**
+     * The kernel shared by all kernels of the bank (null if sharing brings no gain)
+     */
+    private final SparseKernel   base;
+    
+    /**
+     * The difference between each kernel and the base (or the kernels themselves if there is no
+     * base)
+     */
+    private final SparseKernel[] deltas;
+    
+    /**
+     * @param kernels
+     *            the kernels, each given as a [Z (slice)][XY (1D offset)] double array of size
+     *            (2*kWidth+1) x (2*kHeight+1) x (2*kDepth+1)
+     * @param paddedWidth
+     *            the width of the padded input slices (see {@link Padding})
+     */
+    SparseKernelBank(double[][][] kernels, int kWidth, int kHeight, int kDepth, int paddedWidth)
+    {
+        final int nbKernels = kernels.length;
+        final int depth = kernels[0].length;
+        final int size = kernels[0][0].length;
+        
+        // base: most frequent weight at each tap
+        
+        double[][] baseKernel = new double[depth][size];
+        double[][][] deltaKernels = new double[nbKernels][depth][size];
+        
+        HashMap<Double, Integer> counts = new HashMap<Double, Integer>();
+        
+        for (int z = 0; z < depth; z++)
+            for (int xy = 0; xy < size; xy++)
+            {
+                counts.clear();
+                
+                double mode = 0;
+                int modeCount = 0;
+                
+                for (double[][] kernel : kernels)
+                {
+                    double weight = kernel[z][xy];
+                    
+                    Integer count = counts.get(weight);
+                    count = count == null ? 1 : count + 1;
+                    counts.put(weight, count);
+                    
+                    if (count > modeCount)
+                    {
+                        mode = weight;
+                        modeCount = count;
+                    }
+                }
+                
+                // a weight used by a single kernel is not worth sharing
+                if (modeCount == 1) mode = 0;
+                
+                baseKernel[z][xy] = mode;
+                
+                for (int k = 0; k < nbKernels; k++)
+                    deltaKernels[k][z][xy] = kernels[k][z][xy] - mode;
+            }
+        
+        SparseKernel sharedBase = new SparseKernel(baseKernel, kWidth, kHeight, kDepth, paddedWidth);
+        SparseKernel[] sharedDeltas = new SparseKernel[nbKernels];
+        SparseKernel[] separate = new SparseKernel[nbKernels];
+        
+        int sharedPasses = sharedBase.getNbPasses();
+        int separatePasses = 0;
+        
+        for (int k = 0; k < nbKernels; k++)
+        {
+            sharedDeltas[k] = new SparseKernel(deltaKernels[k], kWidth, kHeight, kDepth, paddedWidth);
+            separate[k] = new SparseKernel(kernels[k], kWidth, kHeight, kDepth, paddedWidth);
+            
+            sharedPasses += sharedDeltas[k].getNbPasses();
+            separatePasses += separate[k].getNbPasses();
+        }
+        
+        if (sharedPasses < separatePasses)
+        {
+            base = sharedBase;
+            deltas = sharedDeltas;
+        }
+        else
+        {
+            base = null;
+            deltas = separate;
+        }
+    }
+    
+    /**
+     * @return the number of passes over each output line, for all kernels of the bank
+     */
+    int getNbPasses()
+    {
+        int passes = base == null ? 0 : base.getNbPasses();
+        
+        for (SparseKernel delta : deltas)
+            passes += delta.getNbPasses();
+        
+        return passes;
+    }
+    
+    /**
+     * Low-level convolution of a single image line with all kernels of the bank (see
+     * {@link SparseKernel#convolveLine(double[][], double[], int, int, int)}). <br>
+     * Warning: this is a low-level method. No check is performed on the input arguments, and the
+     * method may return successfully though with incorrect results. Make sure your arguments follow
+     * the indicated constraints.
+     * 
+     * @param input
+     *            the padded input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+     *            with a halo of the kernel radius in each dimension
+     * @param outputs
+     *            the output line buffers (one per kernel, of length <code>width</code>)
+     * @param width
+     *            the image width (without halo)
+     * @param slice
+     *            the slice of the line to convolve
+     * @param line
+     *            the line to convolve
+     */
+    void convolveLine(double[][] input, double[][] outputs, int width, int slice, int line)
+    {
+        if (base == null)
+        {
+            for (int k = 0; k < deltas.length; k++)
+                deltas[k].convolveLine(input, outputs[k], width, slice, line);
+            
+            return;
+        }
+        
+        base.convolveLine(input, outputs[0], width, slice, line);
+        
+        for (int k = 1; k < deltas.length; k++)
+            System.arraycopy(outputs[0], 0, outputs[k], 0, width);
+        
+        for (int k = 0; k < deltas.length; k++)
+            deltas[k].accumulateLine(input, outputs[k], width, slice, line);
+    }
+    
+    /**
+     * Same as {@link #convolveLine(double[][], double[][], int, int, int)}, with integer arithmetic
+     * (see {@link SparseKernel#convolveLine(int[][], int[], int, int, int)})
+     */
+    void convolveLine(int[][] input, int[][] outputs, int width, int slice, int line)
+    {
+        if (base == null)
+        {
+            for (int k = 0; k < deltas.length; k++)
+                deltas[k].convolveLine(input, outputs[k], width, slice, line);
+            
+            return;
+        }
+        
+        base.convolveLine(input, outputs[0], width, slice, line);
+        
+        for (int k = 1; k < deltas.length; k++)
+            System.arraycopy(outputs[0], 0, outputs[k], 0, width);
+        
+        for (int k = 0; k < deltas.length; k++)
+            deltas[k].accumulateLine(input, outputs[k], width, slice, line);
+    }
+}
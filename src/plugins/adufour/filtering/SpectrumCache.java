@@ -0,0 +1,151 @@
+package plugins.adufour.filtering;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of kernel spectra used by {@link FFTConvolution}, shared by all filters of the JVM (e.g.
+ * the same kernel applied to every frame and channel of a sequence, or to every sequence of a
+ * protocol). The least recently used spectra are evicted when the cache exceeds its memory budget
+ * (see {@link #MAX_MEMORY}).<br>
+ * Spectra only depend on the kernel values and on the transform size: the boundary condition is
+ * applied to the image (see {@link Padding}), thus a spectrum serves both zero and mirror edges.
+ */
+final class SpectrumCache
+{
+    /**
+     * Memory budget of the cache, in bytes (1/8 of the maximum heap size)
+     */
+    static final long                                     MAX_MEMORY = Runtime.getRuntime().maxMemory() / 8;
+    
+    /**
+     * Spectra ({re, im} pairs of [Z (slice)][XY (1D offset)] arrays), in access order
+     */
+    private static final LinkedHashMap<Key, double[][][]> spectra    = new LinkedHashMap<Key, double[][][]>(16, 0.75f, true);
+    
+    private static long                                   memory     = 0;
+    
+    private SpectrumCache()
+    {
+    }
+    
+    /**
+     * Identifies a kernel spectrum by the kernel values and the transform size
+     */
+    static final class Key
+    {
+        /**
+         * A private copy of the kernel values (hash collisions are resolved by comparing them)
+         */
+        private final double[][] kernel;
+        
+        private final int        kWidth, kHeight, kDepth;
+        
+        private final int        fftWidth, fftHeight, fftDepth;
+        
+        private final int        hash;
+        
+        Key(double[][] kernel, int kWidth, int kHeight, int kDepth, int fftWidth, int fftHeight, int fftDepth)
+        {
+            this.kernel = new double[kernel.length][];
+            for (int z = 0; z < kernel.length; z++)
+                this.kernel[z] = kernel[z].clone();
+            
+            this.kWidth = kWidth;
+            this.kHeight = kHeight;
+            this.kDepth = kDepth;
+            this.fftWidth = fftWidth;
+            this.fftHeight = fftHeight;
+            this.fftDepth = fftDepth;
+            
+            hash = Arrays.hashCode(new int[] { Arrays.deepHashCode(kernel), kWidth, kHeight, kDepth, fftWidth, fftHeight, fftDepth });
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key)) return false;
+            
+            Key key = (Key) obj;
+            
+            return hash == key.hash && kWidth == key.kWidth && kHeight == key.kHeight && kDepth == key.kDepth && fftWidth == key.fftWidth && fftHeight == key.fftHeight
+                    && fftDepth == key.fftDepth && Arrays.deepEquals(kernel, key.kernel);
+        }
+    }
+    
+    /**
+     * @return the cached spectrum ({re, im} pair) for the given key, or null if it is not cached.
+     *         The returned arrays must not be modified
+     */
+    static synchronized double[][][] get(Key key)
+    {
+        return spectra.get(key);
+    }
+    
+    /**
+     * Stores the given spectrum, and evicts the least recently used spectra if the cache exceeds
+     * its memory budget. Spectra larger than the budget are not stored
+     * 
+     * @param key
+     *            the kernel and transform size
+     * @param spectrum
+     *            the {re, im} pair of [Z (slice)][XY (1D offset)] arrays (must not be modified
+     *            afterwards)
+     */
+    static synchronized void put(Key key, double[][][] spectrum)
+    {
+        long size = sizeOf(spectrum);
+        
+        if (size > MAX_MEMORY) return;
+        
+        double[][][] previous = spectra.put(key, spectrum);
+        
+        if (previous != null) memory -= sizeOf(previous);
+        
+        memory += size;
+        
+        Iterator<Map.Entry<Key, double[][][]>> iterator = spectra.entrySet().iterator();
+        
+        while (memory > MAX_MEMORY && iterator.hasNext())
+        {
+            memory -= sizeOf(iterator.next().getValue());
+            iterator.remove();
+        }
+    }
+    
+    /**
+     * Removes all spectra from the cache
+     */
+    static synchronized void clear()
+    {
+        spectra.clear();
+        memory = 0;
+    }
+    
+    /**
+     * @return the memory used by the cached spectra, in bytes
+     */
+    static synchronized long getMemory()
+    {
+        return memory;
+    }
+    
+    private static long sizeOf(double[][][] spectrum)
+    {
+        long size = 0;
+        
+        for (double[][] part : spectrum)
+            for (double[] slice : part)
+                size += slice.length * 8L;
+        
+        return size;
+    }
+}
@@ -1,6 +1,6 @@
 package plugins.adufour.filtering;
 
-public class StandardDeviation extends SelectionFilter
+public class StandardDeviation extends LocalStatisticsFilter
 {
     @Override
     double process(double currentValue, double[] neighborhood, int neighborHoodSize)
@@ -16,4 +16,10 @@ public class StandardDeviation extends SelectionFilter
         
         return Math.sqrt(var / neighborHoodSize);
     }
+    
+    @Override
+    double process(double currentValue, double sum, double variance, int neighborhoodSize)
+    {
+        return Math.sqrt(variance);
+    }
 }
@@ -0,0 +1,357 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+import icy.type.collection.array.Array1DUtil;
+
+import java.util.Arrays;
+
+/**
+ * Shape of the neighborhood used by a {@link SelectionFilter}. The element is given as a binary
+ * mask centered on the current pixel, and is compiled into horizontal runs (contiguous segments of
+ * the mask along X), such that the neighborhood of each pixel is gathered with one bulk copy per
+ * run instead of one test per mask element.
+ */
+public class StructuringElement
+{
+    public enum Shape
+    {
+        BOX, ELLIPSOID, CROSS, MASK
+    }
+    
+    private final int     radiusX, radiusY, radiusZ;
+    
+    private final boolean isBox;
+    
+    /**
+     * Number of elements in the mask
+     */
+    private final int     size;
+    
+    /**
+     * Offsets of the first element of each run relative to the center of the element
+     */
+    private final int[]   runX, runY, runZ;
+    
+    private final int[]   runLength;
+    
+    /**
+     * Creates a structuring element from a binary mask
+     * 
+     * @param mask
+     *            the mask, given as a [Z][XY] array of size (2*radiusZ+1) x
+     *            (2*radiusX+1)*(2*radiusY+1)
+     */
+    private StructuringElement(boolean[][] mask, int radiusX, int radiusY, int radiusZ)
+    {
+        this.radiusX = radiusX;
+        this.radiusY = radiusY;
+        this.radiusZ = radiusZ;
+        
+        final int sizeX = 2 * radiusX + 1;
+        final int sizeY = 2 * radiusY + 1;
+        
+        // count the runs first
+        
+        int nbRuns = 0, nbElements = 0;
+        
+        for (boolean[] slice : mask)
+            for (int y = 0, xy = 0; y < sizeY; y++)
+                for (int x = 0; x < sizeX; x++, xy++)
+                    if (slice[xy])
+                    {
+                        nbElements++;
+                        if (x == 0 || !slice[xy - 1]) nbRuns++;
+                    }
+        
+        if (nbElements == 0) throw new IllegalArgumentException("Structuring element is empty");
+        
+        size = nbElements;
+        isBox = nbElements == mask.length * sizeX * sizeY;
+        
+        runX = new int[nbRuns];
+        runY = new int[nbRuns];
+        runZ = new int[nbRuns];
+        runLength = new int[nbRuns];
+        
+        int run = -1;
+        
+        for (int z = 0; z < mask.length; z++)
+            for (int y = 0, xy = 0; y < sizeY; y++)
+                for (int x = 0; x < sizeX; x++, xy++)
+                    if (mask[z][xy])
+                    {
+                        if (x == 0 || !mask[z][xy - 1])
+                        {
+                            run++;
+                            runX[run] = x - radiusX;
+                            runY[run] = y - radiusY;
+                            runZ[run] = z - radiusZ;
+                        }
+                        runLength[run]++;
+                    }
+    }
+    
+    /**
+     * Creates a rectangular (box-shaped) structuring element, equivalent to the neighborhood used
+     * by {@link SelectionFilter#filterSquare(Sequence, int...)}
+     * 
+     * @param radiusX
+     *            the radius along X
+     * @param radiusY
+     *            the radius along Y
+     * @param radiusZ
+     *            the radius along Z
+     * @return a new structuring element
+     */
+    public static StructuringElement box(int radiusX, int radiusY, int radiusZ)
+    {
+        boolean[][] mask = createMask(radiusX, radiusY, radiusZ);
+        
+        for (boolean[] slice : mask)
+            Arrays.fill(slice, true);
+        
+        return new StructuringElement(mask, radiusX, radiusY, radiusZ);
+    }
+    
+    /**
+     * Creates a spherical structuring element
+     * 
+     * @param radius
+     *            the radius of the ball
+     * @return a new structuring element
+     */
+    public static StructuringElement ball(int radius)
+    {
+        return ellipsoid(radius, radius, radius);
+    }
+    
+    /**
+     * Creates an ellipsoidal structuring element (an ellipse in 2D if radiusZ is 0). An element of
+     * relative coordinates (x,y,z) is part of the neighborhood if
+     * (x/radiusX)<sup>2</sup>+(y/radiusY)<sup>2</sup>+(z/radiusZ)<sup>2</sup> &le; 1
+     * 
+     * @param radiusX
+     *            the radius along X
+     * @param radiusY
+     *            the radius along Y
+     * @param radiusZ
+     *            the radius along Z (use a different value than along X and Y to account for
+     *            anisotropic sampling)
+     * @return a new structuring element
+     */
+    public static StructuringElement ellipsoid(int radiusX, int radiusY, int radiusZ)
+    {
+        boolean[][] mask = createMask(radiusX, radiusY, radiusZ);
+        
+        for (int z = -radiusZ; z <= radiusZ; z++)
+        {
+            boolean[] slice = mask[z + radiusZ];
+            
+            for (int y = -radiusY, xy = 0; y <= radiusY; y++)
+                for (int x = -radiusX; x <= radiusX; x++, xy++)
+                    slice[xy] = square(x, radiusX) + square(y, radiusY) + square(z, radiusZ) <= 1.0;
+        }
+        
+        return new StructuringElement(mask, radiusX, radiusY, radiusZ);
+    }
+    
+    /**
+     * @return the squared ratio between the given coordinate and radius (with 0/0 = 0)
+     */
+    private static double square(int coordinate, int radius)
+    {
+        if (coordinate == 0) return 0.0;
+        
+        double ratio = (double) coordinate / radius;
+        return ratio * ratio;
+    }
+    
+    /**
+     * Creates a cross-shaped structuring element, made of the pixels along each axis through the
+     * center
+     * 
+     * @param radiusX
+     *            the length of the cross branches along X
+     * @param radiusY
+     *            the length of the cross branches along Y
+     * @param radiusZ
+     *            the length of the cross branches along Z
+     * @return a new structuring element
+     */
+    public static StructuringElement cross(int radiusX, int radiusY, int radiusZ)
+    {
+        boolean[][] mask = createMask(radiusX, radiusY, radiusZ);
+        
+        final int sizeX = 2 * radiusX + 1;
+        
+        for (int z = 0; z < mask.length; z++)
+            mask[z][radiusY * sizeX + radiusX] = true;
+        
+        boolean[] center = mask[radiusZ];
+        
+        for (int x = 0; x < sizeX; x++)
+            center[radiusY * sizeX + x] = true;
+        
+        for (int y = 0, xy = radiusX; y <= 2 * radiusY; y++, xy += sizeX)
+            center[xy] = true;
+        
+        return new StructuringElement(mask, radiusX, radiusY, radiusZ);
+    }
+    
+    /**
+     * Creates a structuring element from a user-defined mask. The mask is read from the first
+     * channel and time point of the given sequence, where all non-zero pixels are part of the
+     * neighborhood, and its center is the center of the sequence.
+     * 
+     * @param mask
+     *            the mask sequence (its size must be odd in every dimension)
+     * @return a new structuring element
+     */
+    public static StructuringElement fromMask(Sequence mask)
+    {
+        final int sizeX = mask.getSizeX();
+        final int sizeY = mask.getSizeY();
+        final int sizeZ = mask.getSizeZ();
+        
+        if (sizeX % 2 == 0 || sizeY % 2 == 0 || sizeZ % 2 == 0) throw new IllegalArgumentException("Structuring element mask has even size");
+        
+        boolean[][] z_xy = createMask(sizeX / 2, sizeY / 2, sizeZ / 2);
+        
+        for (int z = 0; z < sizeZ; z++)
+        {
+            Object maskXY = mask.getDataXY(0, z, 0);
+            boolean signed = mask.isSignedDataType();
+            
+            for (int xy = 0; xy < z_xy[z].length; xy++)
+                z_xy[z][xy] = Array1DUtil.getValue(maskXY, xy, signed) != 0;
+        }
+        
+        return new StructuringElement(z_xy, sizeX / 2, sizeY / 2, sizeZ / 2);
+    }
+    
+    /**
+     * Creates a structuring element of given shape
+     * 
+     * @param shape
+     *            the shape of the element (the mask shape is not supported, use
+     *            {@link #fromMask(Sequence)} instead)
+     * @param radiusX
+     *            the radius along X
+     * @param radiusY
+     *            the radius along Y
+     * @param radiusZ
+     *            the radius along Z
+     * @return a new structuring element
+     */
+    public static StructuringElement create(Shape shape, int radiusX, int radiusY, int radiusZ)
+    {
+        switch (shape)
+        {
+        case BOX:
+            return box(radiusX, radiusY, radiusZ);
+        case ELLIPSOID:
+            return ellipsoid(radiusX, radiusY, radiusZ);
+        case CROSS:
+            return cross(radiusX, radiusY, radiusZ);
+        default:
+            throw new IllegalArgumentException("Cannot create a " + shape + " structuring element from its radius");
+        }
+    }
+    
+    private static boolean[][] createMask(int radiusX, int radiusY, int radiusZ)
+    {
+        if (radiusX < 0 || radiusY < 0 || radiusZ < 0) throw new IllegalArgumentException("Structuring element radius must be positive");
+        
+        return new boolean[2 * radiusZ + 1][(2 * radiusX + 1) * (2 * radiusY + 1)];
+    }
+    
+    public int getRadiusX()
+    {
+        return radiusX;
+    }
+    
+    public int getRadiusY()
+    {
+        return radiusY;
+    }
+    
+    public int getRadiusZ()
+    {
+        return radiusZ;
+    }
+    
+    /**
+     * @return true if this element fills its entire bounding box
+     */
+    public boolean isBox()
+    {
+        return isBox;
+    }
+    
+    /**
+     * @return the number of elements in the neighborhood (when it is not clipped by the image
+     *         borders)
+     */
+    public int getSize()
+    {
+        return size;
+    }
+    
+    /**
+     * @return the number of horizontal runs of this element
+     */
+    public int getRunCount()
+    {
+        return runLength.length;
+    }
+    
+    /**
+     * @return the X offset (relative to the center) of the first element of the specified run
+     */
+    public int getRunX(int run)
+    {
+        return runX[run];
+    }
+    
+    /**
+     * @return the Y offset (relative to the center) of the specified run
+     */
+    public int getRunY(int run)
+    {
+        return runY[run];
+    }
+    
+    /**
+     * @return the Z offset (relative to the center) of the specified run
+     */
+    public int getRunZ(int run)
+    {
+        return runZ[run];
+    }
+    
+    /**
+     * @return the number of elements of the specified run
+     */
+    public int getRunLength(int run)
+    {
+        return runLength[run];
+    }
+    
+    /**
+     * Compiles the runs of this element into 1D offsets for an image of given width
+     * 
+     * @param width
+     *            the image width
+     * @return the offset of the first element of each run, relative to the center of the element,
+     *         in the XY plane
+     */
+    public int[] getRunOffsets(int width)
+    {
+        int[] offsets = new int[runLength.length];
+        
+        for (int run = 0; run < offsets.length; run++)
+            offsets[run] = runY[run] * width + runX[run];
+        
+        return offsets;
+    }
+}
@@ -0,0 +1,113 @@
+package plugins.adufour.filtering;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import plugins.adufour.vars.lang.Var;
+import plugins.adufour.vars.lang.VarBoolean;
+import plugins.adufour.vars.lang.VarDouble;
+import plugins.adufour.vars.util.VarListener;
+
+/**
+ * Progress and cancellation state of a multi-threaded filtering process. Worker threads report
+ * their progress in a {@link LongAdder} (without contention and without firing listeners), and
+ * check for cancellation through a volatile flag. The progress variable is only updated by the
+ * thread submitting the tasks, at most every {@link #PUBLICATION_PERIOD} milliseconds (see
+ * {@link TaskPipeline}).
+ */
+class TaskMonitor implements VarListener<Boolean>
+{
+    /**
+     * Minimum delay (in milliseconds) between two updates of the progress variable
+     */
+    static final long        PUBLICATION_PERIOD = 100;
+    
+    private final LongAdder  done               = new LongAdder();
+    
+    private final double     total;
+    
+    private final VarBoolean stopFlag;
+    
+    private final VarDouble  progress;
+    
+    private volatile boolean cancelled;
+    
+    private long             lastPublication    = 0;
+    
+    /**
+     * Creates a new monitor, and resets the given progress variable
+     * 
+     * @param stopFlag
+     *            the stop flag to listen to
+     * @param progress
+     *            the progress variable to update (from 0 to 1)
+     * @param total
+     *            the total amount of work units of the process
+     */
+    TaskMonitor(VarBoolean stopFlag, VarDouble progress, double total)
+    {
+        this.stopFlag = stopFlag;
+        this.progress = progress;
+        this.total = total;
+        
+        progress.setValue(0.0);
+        
+        stopFlag.addListener(this);
+        
+        // the process may have been stopped before it started
+        if (stopFlag.getValue()) cancelled = true;
+    }
+    
+    /**
+     * Reports that the given amount of work is done. This method can be called from any thread
+     * 
+     * @param units
+     *            the number of work units done
+     */
+    void add(long units)
+    {
+        done.add(units);
+    }
+    
+    /**
+     * @return true if the process has been stopped. Running tasks should check this flag regularly
+     *         and return as soon as possible when it is set
+     */
+    boolean isCancelled()
+    {
+        return cancelled;
+    }
+    
+    /**
+     * Updates the progress variable, unless it has been updated recently. This method should only
+     * be called by the thread submitting the tasks
+     */
+    void publish()
+    {
+        long now = System.currentTimeMillis();
+        
+        if (now - lastPublication < PUBLICATION_PERIOD) return;
+        
+        lastPublication = now;
+        progress.setValue(Math.min(done.sum() / total, 1.0));
+    }
+    
+    /**
+     * Publishes the final progress and stops listening to the stop flag
+     */
+    void close()
+    {
+        stopFlag.removeListener(this);
+        progress.setValue(Math.min(done.sum() / total, 1.0));
+    }
+    
+    @Override
+    public void valueChanged(Var<Boolean> source, Boolean oldValue, Boolean newValue)
+    {
+        if (newValue) cancelled = true;
+    }
+    
+    @Override
+    public void referenceChanged(Var<Boolean> source, Var<? extends Boolean> oldReference, Var<? extends Boolean> newReference)
+    {
+    }
+}
@@ -0,0 +1,191 @@
+package plugins.adufour.filtering;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Submits tasks to a service without waiting for each group of tasks (e.g. each slice) to complete
+ * before submitting the next one, such that tasks from different slices, channels and time points
+ * overlap. The number of tasks in flight is bounded: when the limit is reached, the submitting
+ * thread waits for the oldest task to complete. Tasks are always awaited in submission order, thus
+ * the caller sees time points (and slices) complete in a deterministic order, and the memory
+ * allocated ahead of the running tasks (e.g. output images) is bounded as well.<br>
+ * This class is not thread-safe: tasks should be submitted from a single thread.
+ */
+class TaskPipeline
+{
+    private final ExecutorService       service;
+    
+    private final int                   maxTasksInFlight;
+    
+    private final ArrayDeque<Task>      tasks = new ArrayDeque<Task>();
+    
+    private final TaskMonitor           monitor;
+    
+    /**
+     * @param service
+     *            the service running the tasks
+     * @param maxTasksInFlight
+     *            the maximum number of tasks submitted but not yet awaited
+     * @param monitor
+     *            the monitor whose progress is published while waiting for tasks (or null)
+     */
+    TaskPipeline(ExecutorService service, int maxTasksInFlight, TaskMonitor monitor)
+    {
+        this.service = service;
+        this.maxTasksInFlight = Math.max(1, maxTasksInFlight);
+        this.monitor = monitor;
+    }
+    
+    /**
+     * Submits a new task, after waiting for the oldest tasks if too many tasks are in flight
+     * 
+     * @param task
+     *            the task to run
+     * @throws InterruptedException
+     * @throws ExecutionException
+     *             if one of the awaited tasks has failed
+     */
+    void submit(Runnable task) throws InterruptedException, ExecutionException
+    {
+        while (tasks.size() >= maxTasksInFlight)
+            waitFor(tasks.poll());
+        
+        Task pipelined = new Task(task);
+        pipelined.future = service.submit(pipelined);
+        tasks.add(pipelined);
+    }
+    
+    /**
+     * Waits for all the submitted tasks to complete (in submission order)
+     * 
+     * @throws InterruptedException
+     * @throws ExecutionException
+     *             if one of the tasks has failed
+     */
+    void await() throws InterruptedException, ExecutionException
+    {
+        while (!tasks.isEmpty())
+            waitFor(tasks.poll());
+    }
+    
+    /**
+     * Waits for the given task to complete, publishing the progress of the monitor (if any)
+     * periodically in the meantime
+     */
+    private void waitFor(Task task) throws InterruptedException, ExecutionException
+    {
+        if (monitor == null)
+        {
+            task.future.get();
+            return;
+        }
+        
+        while (true)
+        {
+            try
+            {
+                task.future.get(TaskMonitor.PUBLICATION_PERIOD, TimeUnit.MILLISECONDS);
+                break;
+            }
+            catch (TimeoutException e)
+            {
+                monitor.publish();
+            }
+        }
+        
+        monitor.publish();
+    }
+    
+    /**
+     * Cancels the tasks that have not started yet, and waits for the running ones to complete. When
+     * this method returns, no task of this pipeline is running or will run (note that
+     * {@link Future#cancel(boolean)} alone does not guarantee this, since the future of a running
+     * task reports its cancellation immediately, while the task keeps running)
+     */
+    void cancel()
+    {
+        // claim the tasks that have not started yet first: they will be skipped by the service
+        for (Task task : tasks)
+            if (task.started.compareAndSet(false, true)) task.future.cancel(false);
+        
+        boolean interrupted = false;
+        
+        while (!tasks.isEmpty())
+        {
+            Task task = tasks.poll();
+            
+            if (task.future.isCancelled()) continue;
+            
+            while (true)
+            {
+                try
+                {
+                    task.done.await();
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                    // keep waiting: the task may still write to the output
+                    interrupted = true;
+                }
+            }
+            
+            try
+            {
+                task.future.get();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+            catch (ExecutionException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+    
+    /**
+     * A task of the pipeline, which is either started by the service or claimed (and skipped) by
+     * {@link TaskPipeline#cancel()}, and signals its completion separately from its future
+     */
+    private static class Task implements Runnable
+    {
+        final Runnable       runnable;
+        
+        final AtomicBoolean  started = new AtomicBoolean(false);
+        
+        final CountDownLatch done    = new CountDownLatch(1);
+        
+        Future<?>            future;
+        
+        Task(Runnable runnable)
+        {
+            this.runnable = runnable;
+        }
+        
+        @Override
+        public void run()
+        {
+            if (!started.compareAndSet(false, true)) return;
+            
+            try
+            {
+                runnable.run();
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package plugins.adufour.filtering;
 
-public class Variance extends SelectionFilter
+public class Variance extends LocalStatisticsFilter
 {
     @Override
     double process(double currentValue, double[] neighborhood, int neighborHoodSize)
@@ -16,4 +16,10 @@ public class Variance extends SelectionFilter
         
         return var / neighborHoodSize;
     }
+    
+    @Override
+    double process(double currentValue, double sum, double variance, int neighborhoodSize)
+    {
+        return variance;
+    }
 }